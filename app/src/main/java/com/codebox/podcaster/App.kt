@@ -2,8 +2,13 @@ package com.codebox.podcaster
 
 import android.app.Application
 import androidx.appcompat.app.AppCompatDelegate
-
+import com.codebox.podcaster.recorder.segmentrecorder.RecordingRecovery
 import dagger.hilt.android.HiltAndroidApp
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import javax.inject.Inject
 
 
 /**
@@ -19,12 +24,26 @@ class App : Application() {
         lateinit var instance: App
     }
 
+    @Inject
+    lateinit var recordingRecovery: RecordingRecovery
+
+    private val applicationScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
     override fun onCreate() {
         super.onCreate()
 
         instance = this
 
         initialiseAppTheme()
+        recoverInterruptedRecordings()
+    }
+
+    /**
+     * Recordings interrupted by the death of the process are saved as segments, in the background so
+     * startup does not wait for it.
+     */
+    private fun recoverInterruptedRecordings() {
+        applicationScope.launch { recordingRecovery.recover() }
     }
 
     private fun initialiseAppTheme() {
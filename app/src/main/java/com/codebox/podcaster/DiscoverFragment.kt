@@ -56,7 +56,7 @@ class DiscoverFragment : Fragment(R.layout.fragment_discover) {
                 1,
                 2
             ),
-            mutableListOf(Flag(0, 10, 0))
+            mutableListOf(Flag(0, 10_000_000, 0))
         )
 
         val direction =
@@ -2,13 +2,14 @@ package com.codebox.podcaster.modules.db
 
 import android.content.Context
 import com.codebox.podcaster.storage.db.app.AppDatabase
-import com.codebox.podcaster.storage.db.app.segment.FlagDao
+import com.codebox.podcaster.storage.db.app.journal.JournalDao
 import com.codebox.podcaster.storage.db.app.segment.SegmentDao
 import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.components.SingletonComponent
+import javax.inject.Singleton
 
 /**
  * Created by Codebox on 08/03/21
@@ -17,6 +18,7 @@ import dagger.hilt.components.SingletonComponent
 @InstallIn(SingletonComponent::class)
 object AppDatabaseModule {
 
+    @Singleton
     @Provides
     fun provideAppDatabase(@ApplicationContext context: Context): AppDatabase {
         return AppDatabase.getDatabase(context)
@@ -28,7 +30,7 @@ object AppDatabaseModule {
     }
 
     @Provides
-    fun provideFlagDao(appDatabase: AppDatabase): FlagDao {
-        return appDatabase.flagDao()
+    fun provideJournalDao(appDatabase: AppDatabase): JournalDao {
+        return appDatabase.journalDao()
     }
 }
@@ -3,7 +3,7 @@ package com.codebox.podcaster.modules.dispatcher
 import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
-import dagger.hilt.android.components.ServiceComponent
+import dagger.hilt.components.SingletonComponent
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
 import javax.inject.Qualifier
@@ -12,7 +12,7 @@ import javax.inject.Qualifier
  * Created by Codebox on 28/04/21
  */
 @Module
-@InstallIn(ServiceComponent::class)
+@InstallIn(SingletonComponent::class)
 class DispatcherModule {
 
 
@@ -24,6 +24,10 @@ class DispatcherModule {
     @Retention(AnnotationRetention.BINARY)
     annotation class DefaultDispatcher
 
+    @Qualifier
+    @Retention(AnnotationRetention.BINARY)
+    annotation class MainDispatcher
+
     @IODispatcher
     @Provides
     fun providesIODispatcher(): CoroutineDispatcher {
@@ -36,4 +40,10 @@ class DispatcherModule {
         return Dispatchers.Default
     }
 
+    @MainDispatcher
+    @Provides
+    fun providesMainDispatcher(): CoroutineDispatcher {
+        return Dispatchers.Main
+    }
+
 }
\ No newline at end of file
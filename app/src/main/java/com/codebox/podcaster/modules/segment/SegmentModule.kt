@@ -1,7 +1,5 @@
 package com.codebox.podcaster.modules.segment
 
-import com.codebox.podcaster.recorder.base.Recorder
-import com.codebox.podcaster.recorder.segmentrecorder.SegmentRecorderImpl
 import com.codebox.podcaster.recorder.segmentrecorder.SegmentRecordingManagerImpl
 import com.codebox.podcaster.recorder.segmentrecorder.base.SegmentRecordingManager
 import com.codebox.podcaster.repo.SegmentRepository
@@ -13,13 +11,13 @@ import com.codebox.podcaster.storage.disk.subsegmentstorage.SubSegmentStorageImp
 import dagger.Binds
 import dagger.Module
 import dagger.hilt.InstallIn
-import dagger.hilt.android.components.ServiceComponent
+import dagger.hilt.components.SingletonComponent
 
 /**
  * Created by Codebox on 08/03/21
  */
 @Module
-@InstallIn(ServiceComponent::class)
+@InstallIn(SingletonComponent::class)
 abstract class SegmentModule {
     @Binds
     abstract fun bindSegmentDiskStorage(segmentStorageImpl: SegmentStorageImpl): SegmentDiskStorage
@@ -30,9 +28,6 @@ abstract class SegmentModule {
     @Binds
     abstract fun bindSubSegmentDiskStorage(subSegmentStorageImpl: SubSegmentStorageImpl): SubSegmentDiskStorage
 
-    @Binds
-    abstract fun bindSegmentRecorder(segmentRecorderImpl: SegmentRecorderImpl): Recorder
-
     @Binds
     abstract fun bindSegmentRecordingManager(segmentRecordingManagerImpl: SegmentRecordingManagerImpl): SegmentRecordingManager
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.codebox.podcaster.modules.segment
+
+import com.codebox.podcaster.BuildConfig
+import com.codebox.podcaster.recorder.base.Recorder
+import com.codebox.podcaster.recorder.segmentrecorder.AudioRecordSegmentRecorder
+import com.codebox.podcaster.recorder.segmentrecorder.SegmentRecorderImpl
+import dagger.Module
+import dagger.Provides
+import dagger.hilt.InstallIn
+import dagger.hilt.components.SingletonComponent
+import javax.inject.Provider
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+@Module
+@InstallIn(SingletonComponent::class)
+object SegmentRecorderModule {
+
+    /**
+     * [AudioRecordSegmentRecorder] records a segment into a single file and pauses without
+     * restarting anything. It is only enabled where [BuildConfig.PAUSABLE_SEGMENT_RECORDER] is set
+     * until it has been tried on more devices; [SegmentRecorderImpl] stays the fallback.
+     */
+    @Provides
+    fun provideSegmentRecorder(
+        segmentRecorderImpl: Provider<SegmentRecorderImpl>,
+        audioRecordSegmentRecorder: Provider<AudioRecordSegmentRecorder>
+    ): Recorder {
+        return if (BuildConfig.PAUSABLE_SEGMENT_RECORDER)
+            audioRecordSegmentRecorder.get()
+        else
+            segmentRecorderImpl.get()
+    }
+}
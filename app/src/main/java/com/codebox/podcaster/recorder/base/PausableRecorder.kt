@@ -0,0 +1,18 @@
+package com.codebox.podcaster.recorder.base
+
+import java.io.File
+
+/**
+ * A [Recorder] which keeps its output open while paused: everything recorded between
+ * [startRecording] and [stopRecording] ends up in a single file.
+ */
+interface PausableRecorder : Recorder {
+
+    /**
+     * @return the file being recorded, or null if recording failed. It is only complete once
+     * [stopRecording] returns.
+     */
+    fun pauseRecording(): File?
+    fun resumeRecording(): Boolean
+
+}
@@ -4,7 +4,22 @@ import java.io.File
 
 interface Recorder {
 
+    /**
+     * The file being recorded, known as soon as [startRecording] succeeded.
+     */
+    val outputFile: File?
+
+    /**
+     * Called, possibly from another thread, when recording stopped by itself because it failed.
+     * The file is then incomplete, and [stopRecording] returns null.
+     */
+    var onRecordingFailed: ((Exception) -> Unit)?
+
     suspend fun startRecording(): Boolean
-    fun stopRecording(): File?
+
+    /**
+     * @return the recorded file, or null if recording failed.
+     */
+    suspend fun stopRecording(): File?
 
 }
@@ -0,0 +1,330 @@
+package com.codebox.podcaster.recorder.segmentrecorder
+
+import android.media.AudioFormat
+import android.media.AudioRecord
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaFormat
+import android.media.MediaRecorder
+import android.os.Build
+import android.util.Log
+import com.codebox.podcaster.modules.dispatcher.DispatcherModule
+import com.codebox.podcaster.recorder.base.PausableRecorder
+import com.codebox.podcaster.recorder.segmentrecorder.base.SegmentRecorder
+import com.codebox.podcaster.storage.disk.subsegmentstorage.SubSegmentDiskStorage
+import com.codebox.podcaster.ui.customViews.wave.view.FrameGainAccumulator
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
+import com.codebox.podcaster.util.adts.AdtsHeader
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import javax.inject.Inject
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Records a whole segment into a single ADTS file: the microphone PCM read from [AudioRecord] is
+ * encoded to AAC by one [MediaCodec] which lives as long as the segment. Pausing only stops feeding
+ * the encoder, so resuming costs nothing and there are no sub segment files to join afterwards.
+ *
+ * The exact waveform peaks are computed from the PCM on its way to the encoder.
+ */
+class AudioRecordSegmentRecorder @Inject constructor(
+    private val storage: SubSegmentDiskStorage,
+    @DispatcherModule.IODispatcher private val ioDispatcher: CoroutineDispatcher
+) : SegmentRecorder, PausableRecorder {
+
+    companion object {
+        private const val TAG = "AudioRecordRecorder"
+        private const val MIME_TYPE = "audio/mp4a-latm"
+        private const val SAMPLE_RATE = SubSegmentPeakTracker.SAMPLE_RATE
+        private const val SAMPLES_PER_FRAME = SubSegmentPeakTracker.SAMPLES_PER_FRAME
+        private const val CHANNELS = 1
+        private const val BIT_RATE = 64_000
+        private const val CODEC_TIMEOUT_US = 10_000L
+
+        // Frames the AudioRecord can buffer while the read loop waits on the encoder.
+        private const val BUFFERED_FRAMES = 8
+    }
+
+    override var outputFile: File? = null
+        private set
+
+    override var onRecordingFailed: ((Exception) -> Unit)? = null
+
+    private var recordingJob: Job? = null
+
+    // Set by the recording job when it stops on an error.
+    @Volatile
+    private var failure: Exception? = null
+
+    @Volatile
+    private var isPaused = false
+
+    @Volatile
+    private var isStopRequested = false
+
+    override suspend fun startRecording(): Boolean {
+        // A job which failed is over, a new file can be recorded.
+        if (recordingJob?.isActive == true)
+            return false
+
+        val file = storage.createNewFile() ?: return false
+        val audioRecord = createAudioRecord() ?: return false
+        val encoder = createEncoder()
+        if (encoder == null) {
+            audioRecord.release()
+            return false
+        }
+
+        outputFile = file
+        isPaused = false
+        isStopRequested = false
+        failure = null
+        audioRecord.startRecording()
+        recordingJob = CoroutineScope(ioDispatcher).launch { record(audioRecord, encoder, file) }
+        return true
+    }
+
+    override fun pauseRecording(): File? {
+        checkRecorderState()
+        isPaused = true
+        return outputFile.takeIf { failure == null }
+    }
+
+    override fun resumeRecording(): Boolean {
+        checkRecorderState()
+        isPaused = false
+        return true
+    }
+
+    override suspend fun stopRecording(): File? {
+        checkRecorderState()
+        isStopRequested = true
+        recordingJob?.join()
+        recordingJob = null
+        return outputFile.takeIf { failure == null }
+    }
+
+    private fun checkRecorderState() {
+        if (recordingJob == null)
+            throw SegmentRecorder.RecordingNotStartedException()
+    }
+
+    private suspend fun record(audioRecord: AudioRecord, encoder: MediaCodec, file: File) {
+        val gains = FrameGainAccumulator(CHANNELS, SAMPLES_PER_FRAME, 1024)
+        try {
+            FileOutputStream(file).use { output ->
+                val session = AdtsEncoderSession(encoder, output.channel)
+                val pcm = ShortArray(SAMPLES_PER_FRAME * CHANNELS)
+
+                while (!isStopRequested) {
+                    val read = audioRecord.read(pcm, 0, pcm.size)
+                    if (read < 0)
+                        throw IOException("AudioRecord read failed: $read")
+
+                    // The microphone is still read while paused, otherwise stale audio would be
+                    // encoded on resume.
+                    if (isPaused || read == 0) {
+                        session.drain()
+                        continue
+                    }
+                    gains.add(pcm, read)
+                    session.queue(pcm, read)
+                }
+                session.finish()
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "record: failed for ${file.name}", e)
+            failure = e
+        } catch (e: IllegalStateException) {
+            Log.e(TAG, "record: encoder failed for ${file.name}", e)
+            failure = e
+        } finally {
+            audioRecord.stop()
+            audioRecord.release()
+            encoder.release()
+        }
+
+        // The peaks would not match the audio the file holds.
+        val error = failure
+        if (error != null) {
+            onRecordingFailed?.invoke(error)
+            return
+        }
+        storage.writePeaks(file, WaveformPeaks(SAMPLE_RATE, SAMPLES_PER_FRAME, gains.finish()))
+    }
+
+    private fun createAudioRecord(): AudioRecord? {
+        val minBufferSize = AudioRecord.getMinBufferSize(
+            SAMPLE_RATE,
+            AudioFormat.CHANNEL_IN_MONO,
+            AudioFormat.ENCODING_PCM_16BIT
+        )
+        if (minBufferSize <= 0)
+            return null
+
+        val audioRecord = AudioRecord(
+            MediaRecorder.AudioSource.DEFAULT,
+            SAMPLE_RATE,
+            AudioFormat.CHANNEL_IN_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            max(minBufferSize, SAMPLES_PER_FRAME * CHANNELS * 2 * BUFFERED_FRAMES)
+        )
+        if (audioRecord.state != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release()
+            return null
+        }
+        return audioRecord
+    }
+
+    private fun createEncoder(): MediaCodec? {
+        val format = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, CHANNELS).apply {
+            setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC)
+            setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE)
+            setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, SAMPLES_PER_FRAME * CHANNELS * 2)
+        }
+
+        val encoder = try {
+            MediaCodec.createEncoderByType(MIME_TYPE)
+        } catch (e: IOException) {
+            Log.e(TAG, "createEncoder: no AAC encoder", e)
+            return null
+        }
+
+        return try {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            encoder.start()
+            encoder
+        } catch (e: IllegalStateException) {
+            Log.e(TAG, "createEncoder: failed to configure the encoder", e)
+            encoder.release()
+            null
+        }
+    }
+
+    /**
+     * Feeds PCM to the encoder and appends every encoded frame to [output], behind its ADTS header.
+     * Buffers are fetched by index, like in MediaCodecAdapter, and through the buffer arrays
+     * before Lollipop.
+     */
+    private class AdtsEncoderSession(
+        private val encoder: MediaCodec,
+        private val output: FileChannel
+    ) {
+
+        private val info = MediaCodec.BufferInfo()
+        private val headerBytes = ByteArray(AdtsHeader.SIZE)
+        private val header = ByteBuffer.wrap(headerBytes)
+        private val inputBuffers = legacyInputBuffers()
+        private var outputBuffers = legacyOutputBuffers()
+        private var queuedSamples = 0L
+
+        fun queue(pcm: ShortArray, length: Int) {
+            var offset = 0
+            while (offset < length) {
+                val index = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US)
+                if (index < 0) {
+                    drain()
+                    continue
+                }
+                val buffer = inputBuffer(index)
+                buffer.clear()
+                val count = min(length - offset, buffer.remaining() / (2 * CHANNELS) * CHANNELS)
+                buffer.order(ByteOrder.nativeOrder()).asShortBuffer().put(pcm, offset, count)
+                encoder.queueInputBuffer(index, 0, count * 2, presentationTimeUs(), 0)
+                queuedSamples += count / CHANNELS
+                offset += count
+                drain()
+            }
+        }
+
+        /**
+         * Signals the end of stream and writes the frames still held by the encoder.
+         */
+        fun finish() {
+            var index = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US)
+            while (index < 0) {
+                drain()
+                index = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US)
+            }
+            encoder.queueInputBuffer(
+                index, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM
+            )
+            while (!drain(CODEC_TIMEOUT_US)) {
+                // Wait for the end of stream.
+            }
+        }
+
+        /**
+         * Writes the frames the encoder has ready.
+         * @return true once the end of stream has been reached.
+         */
+        fun drain(timeoutUs: Long = 0): Boolean {
+            while (true) {
+                val index = encoder.dequeueOutputBuffer(info, timeoutUs)
+                when {
+                    index == MediaCodec.INFO_TRY_AGAIN_LATER -> return false
+                    index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ->
+                        outputBuffers = legacyOutputBuffers()
+                    index >= 0 -> {
+                        val isCodecConfig = (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0
+                        if (!isCodecConfig && info.size > 0)
+                            writeFrame(outputBuffer(index))
+                        encoder.releaseOutputBuffer(index, false)
+                        if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                            return true
+                    }
+                    // INFO_OUTPUT_FORMAT_CHANGED: the ADTS header only depends on our own settings.
+                }
+            }
+        }
+
+        private fun writeFrame(frame: ByteBuffer) {
+            frame.limit(info.offset + info.size)
+            frame.position(info.offset)
+            AdtsHeader.write(headerBytes, AdtsHeader.SIZE + info.size, SAMPLE_RATE, CHANNELS)
+            header.clear()
+            val buffers = arrayOf(header, frame)
+            while (frame.hasRemaining())
+                output.write(buffers)
+        }
+
+        private fun presentationTimeUs() = queuedSamples * 1_000_000L / SAMPLE_RATE
+
+        private fun inputBuffer(index: Int): ByteBuffer {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                return encoder.getInputBuffer(index)!!
+            return inputBuffers!![index]
+        }
+
+        private fun outputBuffer(index: Int): ByteBuffer {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                return encoder.getOutputBuffer(index)!!
+            return outputBuffers!![index]
+        }
+
+        @Suppress("DEPRECATION")
+        private fun legacyInputBuffers(): Array<ByteBuffer>? {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                return null
+            return encoder.inputBuffers
+        }
+
+        @Suppress("DEPRECATION")
+        private fun legacyOutputBuffers(): Array<ByteBuffer>? {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                return null
+            return encoder.outputBuffers
+        }
+    }
+}
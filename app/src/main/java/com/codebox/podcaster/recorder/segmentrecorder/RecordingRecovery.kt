@@ -0,0 +1,174 @@
+package com.codebox.podcaster.recorder.segmentrecorder
+
+import android.os.SystemClock
+import android.util.Log
+import com.codebox.podcaster.modules.dispatcher.DispatcherModule
+import com.codebox.podcaster.repo.SegmentRepository
+import com.codebox.podcaster.storage.db.app.journal.RecordingJournal
+import com.codebox.podcaster.storage.db.app.segment.Segment
+import com.codebox.podcaster.storage.db.app.segment.SegmentTimeline
+import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
+import com.codebox.podcaster.storage.db.app.segment.SubSegment
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
+import com.codebox.podcaster.util.adts.AdtsFiles
+import com.codebox.podcaster.util.adts.AdtsFrameIndex
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.math.max
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Turns the sessions left in the [RecordingJournal] by a process that died while recording into
+ * segments, like [SegmentRecordingManagerImpl.generateSegment] would have.
+ */
+@Singleton
+class RecordingRecovery @Inject constructor(
+    private val journal: RecordingJournal,
+    private val repository: SegmentRepository,
+    @DispatcherModule.IODispatcher private val ioDispatcher: CoroutineDispatcher
+) {
+
+    companion object {
+        private const val TAG = "RecordingRecovery"
+    }
+
+    private val recovered = CompletableDeferred<Unit>()
+
+    /**
+     * Every session in the journal is taken for an interrupted one, so recording must not start
+     * before this completes.
+     */
+    suspend fun recover(): List<SegmentWithFlags> {
+        try {
+            val startTime = SystemClock.elapsedRealtime()
+            val sessions = journal.readSessions()
+            if (sessions.isEmpty())
+                return emptyList()
+
+            val segments = sessions.mapNotNull { recoverSession(it) }
+            Log.d(
+                TAG,
+                "recover: ${segments.size} of ${sessions.size} sessions recovered " +
+                        "in ${SystemClock.elapsedRealtime() - startTime} ms"
+            )
+            return segments
+        } finally {
+            recovered.complete(Unit)
+        }
+    }
+
+    /**
+     * Suspends until [recover] has run, whether it succeeded or not.
+     */
+    suspend fun awaitRecovered() = recovered.await()
+
+    /**
+     * @return null if nothing could be recovered. The session stays in the journal if persisting
+     * failed, so it is tried again on the next launch.
+     */
+    private suspend fun recoverSession(session: RecordingJournal.Session): SegmentWithFlags? {
+        val audioDurationsUs = mutableMapOf<File, Long>()
+        val subSegments = withContext(ioDispatcher) {
+            deleteSegmentFiles(session)
+            findMovedSubSegmentFiles(session)
+            repairSubSegments(session.subSegments, audioDurationsUs)
+        }
+        if (subSegments.isEmpty()) {
+            discardSession(session)
+            return null
+        }
+
+        // A file moved to the segments directory already is the segment file. Persisting may
+        // have been done, it then appears twice in the library rather than losing its audio.
+        val subSegmentFiles = subSegments.map { it.subSegmentFile }.distinct()
+        val segmentFile = subSegmentFiles.singleOrNull()?.takeIf { it == session.movedFile }
+            ?: repository.generateSegmentFile(subSegmentFiles) ?: return null
+
+        val timeline = SegmentTimeline(subSegments, audioDurationsUs)
+        val segment = Segment(segmentFile.absolutePath, timeline.durationUs / 1000)
+        val flags = repository.persistSegmentWithFlags(segment, timeline.toFlags(segment.id))
+        discardSession(session, segmentFile)
+        return SegmentWithFlags(segment, flags)
+    }
+
+    /**
+     * The segment files the session was assembling are incomplete, the segment is joined again
+     * from its sub segments.
+     */
+    private fun deleteSegmentFiles(session: RecordingJournal.Session) {
+        session.segmentFiles.forEach {
+            it.delete()
+            WaveformPeaks.getPeaksFile(it).delete()
+            AdtsFrameIndex.getIndexFile(it).delete()
+        }
+    }
+
+    /**
+     * The file shared by the sub segments is where it was moved to if the move was done.
+     */
+    private fun findMovedSubSegmentFiles(session: RecordingJournal.Session) {
+        val movedFile = session.movedFile?.takeIf { it.isFile } ?: return
+        session.subSegments.filter { !it.subSegmentFile.isFile }
+            .forEach { it.subSegmentFile = movedFile }
+    }
+
+    /**
+     * Drops what the process could not finish writing: every file is cut after its last complete
+     * ADTS frame, and a sub segment interrupted while recording ends where its audio ends.
+     *
+     * @param audioDurationsUs receives the duration of every file left.
+     * @return the sub segments which still have audio.
+     */
+    private fun repairSubSegments(
+        subSegments: List<SubSegment>,
+        audioDurationsUs: MutableMap<File, Long>
+    ): List<SubSegment> {
+        // Audio of each file which no stopped sub segment accounts for.
+        val unclaimedMillis = mutableMapOf<File, Long>()
+        for (file in subSegments.map { it.subSegmentFile }.distinct()) {
+            if (!file.isFile)
+                continue
+            try {
+                val info = AdtsFiles.truncateToCompleteFrames(file)
+                if (!info.isEmpty) {
+                    audioDurationsUs[file] = info.durationUs
+                    unclaimedMillis[file] = info.durationUs / 1000
+                }
+            } catch (e: IOException) {
+                Log.w(TAG, "repairSubSegments: cannot read ${file.name}", e)
+            }
+        }
+
+        val repaired = subSegments.filter { it.subSegmentFile in unclaimedMillis }
+        repaired.filter { it.endTime >= 0 }.forEach {
+            unclaimedMillis[it.subSegmentFile] =
+                unclaimedMillis.getValue(it.subSegmentFile) - (it.endTime - it.startTime)
+        }
+        repaired.filter { it.endTime < 0 }.forEach {
+            it.endTime = it.startTime + max(0, unclaimedMillis.getValue(it.subSegmentFile))
+        }
+        return repaired
+    }
+
+    /**
+     * @param segmentFile the segment made of the session, kept if it is one of its files.
+     */
+    private suspend fun discardSession(
+        session: RecordingJournal.Session,
+        segmentFile: File? = null
+    ) {
+        journal.clear(session.sessionId)
+        withContext(ioDispatcher) {
+            session.subSegments.filter { it.subSegmentFile != segmentFile }.forEach {
+                it.subSegmentFile.delete()
+                WaveformPeaks.getPeaksFile(it.subSegmentFile).delete()
+            }
+        }
+    }
+}
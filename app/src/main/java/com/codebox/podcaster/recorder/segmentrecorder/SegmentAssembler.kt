@@ -0,0 +1,116 @@
+package com.codebox.podcaster.recorder.segmentrecorder
+
+import com.codebox.podcaster.modules.dispatcher.DispatcherModule
+import com.codebox.podcaster.repo.SegmentRepository
+import com.codebox.podcaster.storage.db.app.journal.RecordingJournal
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+import javax.inject.Inject
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Builds the segment file while recording goes on: every sub segment is appended to it in the
+ * background as soon as it is complete, so generating the segment only waits for the last one.
+ *
+ * Appends run one at a time, in the order they were requested. Once one fails the assembler gives
+ * up and [finish] returns null, the segment then has to be joined from its sub segments.
+ *
+ * A segment recorded into a single file (e.g. by a PausableRecorder, which appends nothing while
+ * recording) is not copied at all: the file is moved to the segments directory.
+ *
+ * Segment files are journaled with the session they belong to, so that [RecordingRecovery] finds
+ * them if the process dies before the segment is persisted.
+ */
+class SegmentAssembler @Inject constructor(
+    private val repository: SegmentRepository,
+    private val journal: RecordingJournal,
+    @DispatcherModule.IODispatcher private val ioDispatcher: CoroutineDispatcher
+) {
+
+    private val scope = CoroutineScope(SupervisorJob() + ioDispatcher)
+
+    private var lastAppend: Job? = null
+
+    // Only touched by the appends, which never run concurrently.
+    private var segmentFile: File? = null
+    private val appendedFiles = mutableListOf<File>()
+    private var hasFailed = false
+
+    /**
+     * Queues [subSegmentFile] of the session [sessionId] to be appended to the segment. A file
+     * already appended is ignored.
+     */
+    fun append(sessionId: Long, subSegmentFile: File) {
+        val previousAppend = lastAppend
+        lastAppend = scope.launch {
+            previousAppend?.join()
+            appendNow(sessionId, subSegmentFile)
+        }
+    }
+
+    /**
+     * Appends what is still missing of [subSegmentFiles] and completes the segment file.
+     * The assembler can then be used for the next segment.
+     *
+     * @return the segment file, or null if it could not be assembled.
+     */
+    suspend fun finish(sessionId: Long, subSegmentFiles: List<File>): File? {
+        lastAppend?.join()
+        if (appendedFiles.isEmpty() && subSegmentFiles.size == 1)
+            return move(sessionId, subSegmentFiles.single())
+
+        subSegmentFiles.forEach { append(sessionId, it) }
+        lastAppend?.join()
+
+        val file = segmentFile
+        val isComplete = !hasFailed && file != null && appendedFiles == subSegmentFiles
+        if (isComplete)
+            repository.completeSegmentFile(file!!, appendedFiles)
+        else
+            file?.let { withContext(ioDispatcher) { it.delete() } }
+
+        reset()
+        return if (isComplete) file else null
+    }
+
+    private suspend fun move(sessionId: Long, subSegmentFile: File): File? {
+        segmentFile?.let { withContext(ioDispatcher) { it.delete() } }
+        reset()
+
+        val file = repository.createSegmentFile() ?: return null
+        journal.subSegmentFileMoved(sessionId, file)
+        return file.takeIf { repository.moveToSegmentFile(subSegmentFile, it) }
+    }
+
+    private suspend fun appendNow(sessionId: Long, subSegmentFile: File) {
+        if (hasFailed || subSegmentFile in appendedFiles)
+            return
+
+        val file = segmentFile ?: createSegmentFile(sessionId)
+        if (file == null || !repository.appendToSegmentFile(file, subSegmentFile)) {
+            hasFailed = true
+            return
+        }
+        appendedFiles.add(subSegmentFile)
+    }
+
+    private suspend fun createSegmentFile(sessionId: Long): File? {
+        val file = repository.createSegmentFile() ?: return null
+        journal.segmentFileCreated(sessionId, file)
+        segmentFile = file
+        return file
+    }
+
+    private fun reset() {
+        lastAppend = null
+        segmentFile = null
+        appendedFiles.clear()
+        hasFailed = false
+    }
+}
@@ -4,23 +4,32 @@ import android.media.MediaRecorder
 import com.codebox.podcaster.recorder.segmentrecorder.base.SegmentRecorder
 import com.codebox.podcaster.storage.disk.subsegmentstorage.SubSegmentDiskStorage
 import java.io.File
+import java.io.IOException
 import javax.inject.Inject
 
 /**
  * Created by Codebox on 01/03/21
  */
 class SegmentRecorderImpl @Inject constructor(
-    val storage: SubSegmentDiskStorage
+    val storage: SubSegmentDiskStorage,
+    private val peakTracker: SubSegmentPeakTracker
 ) : SegmentRecorder {
 
     private var recorder: MediaRecorder? = null
-    private lateinit var outputFile: File
+    override var outputFile: File? = null
+        private set
+
+    override var onRecordingFailed: ((Exception) -> Unit)? = null
+
+    @Volatile
+    private var hasFailed = false
 
     private val TAG = SegmentRecorderImpl::class.java.simpleName
 
     override suspend fun startRecording(): Boolean {
 
         fetchNewFileFromStorage()
+        hasFailed = false
 
         if (isOutputFileAvailable()) {
             prepareRecorder()
@@ -30,11 +39,17 @@ class SegmentRecorderImpl @Inject constructor(
         return false
     }
 
-    override fun stopRecording(): File {
+    override suspend fun stopRecording(): File? {
         checkRecorderState()
 
+        peakTracker.stop()
+        if (hasFailed) {
+            destroyRecorder()
+            return null
+        }
         recorder?.stop()
         destroyRecorder()
+        outputFile?.let { storage.writePeaks(it, peakTracker.getPeaks(it)) }
         return outputFile
     }
 
@@ -49,11 +64,12 @@ class SegmentRecorderImpl @Inject constructor(
     }
 
     private fun isOutputFileAvailable(): Boolean {
-        return ::outputFile.isInitialized
+        return outputFile != null
     }
 
     private fun initiateRecording() {
         recorder?.start()
+        recorder?.let { peakTracker.start(it::getMaxAmplitude) }
     }
 
     private suspend fun fetchNewFileFromStorage() {
@@ -66,8 +82,9 @@ class SegmentRecorderImpl @Inject constructor(
         recorder = MediaRecorder().apply {
             setAudioSource(MediaRecorder.AudioSource.DEFAULT)// UNPROCESSED available above 24. See if it can be used somehow.
             setOutputFormat(MediaRecorder.OutputFormat.AAC_ADTS)
-            setOutputFile(outputFile.absolutePath)
+            setOutputFile(outputFile!!.absolutePath)
             setAudioEncoder(MediaRecorder.AudioEncoder.HE_AAC) // Confirm with others
+            setAudioSamplingRate(SubSegmentPeakTracker.SAMPLE_RATE)
             setOnInfoListener(object : MediaRecorder.OnInfoListener {
                 override fun onInfo(mr: MediaRecorder?, what: Int, extra: Int) {
                 }
@@ -75,6 +92,8 @@ class SegmentRecorderImpl @Inject constructor(
             })
             setOnErrorListener(object : MediaRecorder.OnErrorListener {
                 override fun onError(mr: MediaRecorder?, what: Int, extra: Int) {
+                    hasFailed = true
+                    onRecordingFailed?.invoke(IOException("MediaRecorder error $what ($extra)"))
                 }
 
             })
@@ -1,13 +1,18 @@
 package com.codebox.podcaster.recorder.segmentrecorder
 
 import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import com.codebox.podcaster.recorder.base.PausableRecorder
 import com.codebox.podcaster.recorder.base.Recorder
 import com.codebox.podcaster.recorder.segmentrecorder.base.SegmentRecordingManager
 import com.codebox.podcaster.repo.SegmentRepository
+import com.codebox.podcaster.storage.db.app.journal.RecordingJournal
 import com.codebox.podcaster.storage.db.app.segment.Flag
 import com.codebox.podcaster.storage.db.app.segment.Segment
+import com.codebox.podcaster.storage.db.app.segment.SegmentTimeline
 import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
 import com.codebox.podcaster.storage.db.app.segment.SubSegment
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
 import com.codebox.podcaster.util.Stopwatch
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
@@ -20,56 +25,111 @@ import javax.inject.Inject
 class SegmentRecordingManagerImpl @Inject constructor(
     private val repository: SegmentRepository,
     private val recorder: Recorder,
-    private val stopwatch: Stopwatch
+    private val stopwatch: Stopwatch,
+    private val assembler: SegmentAssembler,
+    private val journal: RecordingJournal,
+    private val recovery: RecordingRecovery
 ) : SegmentRecordingManager {
 
     private val subSegments = mutableListOf<SubSegment>()
     private var currentSubSegment: SubSegment? = null
 
+    // A paused PausableRecorder still holds the open segment file, see releasePausedRecorder().
+    private var isRecorderPaused = false
+
+    // Identifies the entries of this segment in the journal, which RecordingRecovery reads after a crash.
+    private var sessionId = System.currentTimeMillis()
+
+    private val recordingFailureData = MutableLiveData<Exception>()
+
+    // What the last recorder failure cost, see discardFailedRecording().
+    private var isEarlierAudioKept = true
+
+    init {
+        recorder.onRecordingFailed = { recordingFailureData.postValue(it) }
+    }
+
 
     override suspend fun startRecording(): Boolean {
 
         if (currentSubSegment != null)
             startRecordingFailure()
 
+        // Recovery would take the journal entries of this session for an interrupted one.
+        recovery.awaitRecovered()
+
         
         stopwatch.start()
 
         initialiseCurrentSubSegment()
-        return recorder.startRecording()
+        return recorder.startRecording().also { if (it) journalSubSegmentStarted() }
     }
 
 
     override suspend fun resumeRecording(): Boolean {
         stopwatch.resume()
-        return startRecording()
+
+        val pausableRecorder = recorder as? PausableRecorder
+        if (pausableRecorder == null || !isRecorderPaused)
+            return startRecording()
+
+        if (currentSubSegment != null)
+            startRecordingFailure()
+
+        initialiseCurrentSubSegment()
+        isRecorderPaused = false
+        return pausableRecorder.resumeRecording().also { if (it) journalSubSegmentStarted() }
     }
 
     override suspend fun pauseRecording(): Boolean {
 
         stopwatch.pause()
-        val subSegment = recorder.stopRecording() ?: return false
+        val subSegment = pauseRecorder()
+        if (subSegment == null) {
+            dropFailedRecording()
+            return false
+        }
         addCurrentSubSegmentToSubSegments(subSegment)
+        journal.subSegmentStopped(sessionId, subSegment, currentSubSegment!!.endTime)
         destroyCurrentSubSegment()
+
+        // The file of a paused PausableRecorder is still being written.
+        if (!isRecorderPaused)
+            assembler.append(sessionId, subSegment)
         return true
 
     }
 
     override suspend fun addFlag() {
-        currentSubSegment?.flags?.add(System.currentTimeMillis())
+        val time = stopwatch.elapsedMillis()
+        currentSubSegment?.flags?.add(time)
             ?: addFlagFailure()
+        journal.flagAdded(sessionId, time)
     }
 
     override suspend fun generateSegment(): SegmentWithFlags? {
 
         stopwatch.stop()
+        releasePausedRecorder()
+        // Everything recorded was lost with a failed recorder.
+        if (subSegments.isEmpty()) {
+            journal.clear(sessionId)
+            sessionId = System.currentTimeMillis()
+            return null
+        }
 
+        // Sub segments recorded by a PausableRecorder all share the same file.
         val subSegmentFiles =
-            withContext(Dispatchers.Default) { subSegments.map { it.subSegmentFile } }
-        val segmentFile =
-            repository.generateSegmentFile(subSegmentFiles) ?: return null
-        val segment = persistSegment(makeSegmentObject(segmentFile)) ?: return null
-        val flags = persistFlagsOfSegment(segment.id)
+            withContext(Dispatchers.Default) { subSegments.map { it.subSegmentFile }.distinct() }
+        // Measured first: finish() moves the file of a segment recorded into a single file.
+        val audioDurationsUs = repository.measureAudioDurationsUs(subSegmentFiles)
+        val segmentFile = assembler.finish(sessionId, subSegmentFiles)
+            ?: repository.generateSegmentFile(subSegmentFiles) ?: return null
+        val timeline = SegmentTimeline(subSegments, audioDurationsUs)
+        val segment = makeSegmentObject(segmentFile, timeline)
+        val flags = persistSegmentWithFlags(segment, timeline)
+        journal.clear(sessionId)
+        sessionId = System.currentTimeMillis()
         deleteSubSegmentFiles()
         return SegmentWithFlags(segment, flags)
     }
@@ -78,56 +138,96 @@ class SegmentRecordingManagerImpl @Inject constructor(
         return stopwatch.getTickLiveData()
     }
 
-    private suspend fun persistFlagsOfSegment(segmentId: Long): List<Flag> {
-        val flags = parseFlagsFromSubSegments(segmentId)
-        repository.persistFlagsOfSegment(flags)
-        return flags
+    override fun getRecordingFailureData(): LiveData<Exception> {
+        return recordingFailureData
     }
 
-    private suspend fun persistSegment(segment: Segment): Segment? {
-        val id = repository.persistSegment(segment)
-        if (id < 0)
-            return null
-        return segment.apply { this.id = id }
-    }
+    override suspend fun discardFailedRecording(): Boolean {
+        // Nothing is recording nor paused, the failure was handled when pausing.
+        if (currentSubSegment == null && !isRecorderPaused)
+            return isEarlierAudioKept
 
-    private fun makeSegmentObject(segmentFile: File): Segment {
-        return Segment(segmentFile.absolutePath, calculateCompleteSegmentDuration(subSegments))
+        stopwatch.pause()
+        recorder.stopRecording()
+        dropFailedRecording()
+        return isEarlierAudioKept
     }
 
-    private fun calculateCompleteSegmentDuration(subSegments: List<SubSegment>): Long {
-        var duration = 0L
-        subSegments.forEach { duration += it.endTime - it.startTime }
-        return duration
+    private suspend fun journalSubSegmentStarted() {
+        val file = recorder.outputFile ?: return
+        journal.subSegmentStarted(sessionId, file, currentSubSegment!!.startTime)
     }
 
-    private suspend fun parseFlagsFromSubSegments(segmentId: Long): List<Flag> {
-
-        return withContext(Dispatchers.Default) {
-
-            val lastTime = subSegments.get(0).startTime
-
-            subSegments.flatMap {
+    /**
+     * @return null if the recorder failed, it is then released.
+     */
+    private suspend fun pauseRecorder(): File? {
+        val pausableRecorder = recorder as? PausableRecorder ?: return recorder.stopRecording()
+        return pausableRecorder.pauseRecording()?.also { isRecorderPaused = true }
+            ?: pausableRecorder.stopRecording()
+    }
 
-                it.flags.map {
-                    Flag(segmentId, ((it - lastTime) / 1000).toInt())
-                }
-            }
+    /**
+     * Forgets the sub segment being recorded by the released, failed, recorder, and those recorded
+     * before it into the same file, which is deleted.
+     */
+    private suspend fun dropFailedRecording() {
+        val file = recorder.outputFile
+        val subSegment = currentSubSegment
+        destroyCurrentSubSegment()
+        isRecorderPaused = false
+        isEarlierAudioKept = true
+        if (file == null)
+            return
+
+        // Recovery would otherwise take the sub segment for one interrupted while recording.
+        if (subSegment != null)
+            journal.subSegmentStopped(sessionId, file, stopwatch.elapsedMillis())
+
+        isEarlierAudioKept = subSegments.none { it.subSegmentFile == file }
+        subSegments.removeAll { it.subSegmentFile == file }
+        withContext(Dispatchers.IO) {
+            file.delete()
+            WaveformPeaks.getPeaksFile(file).delete()
+        }
+    }
 
+    /**
+     * Completes the file of a paused [PausableRecorder], the segment can only be generated from it
+     * once the recorder is stopped.
+     */
+    private suspend fun releasePausedRecorder() {
+        if (isRecorderPaused) {
+            recorder.stopRecording()
+            isRecorderPaused = false
         }
+    }
+
+    private suspend fun persistSegmentWithFlags(
+        segment: Segment,
+        timeline: SegmentTimeline
+    ): List<Flag> {
+        val flags = withContext(Dispatchers.Default) { timeline.toFlags(segment.id) }
+        return repository.persistSegmentWithFlags(segment, flags)
+    }
 
+    private fun makeSegmentObject(segmentFile: File, timeline: SegmentTimeline): Segment {
+        return Segment(segmentFile.absolutePath, timeline.durationUs / 1000)
     }
 
     suspend fun deleteSubSegmentFiles() {
         withContext(Dispatchers.Default) {
             subSegments.forEach {
-                withContext(Dispatchers.IO) { it.subSegmentFile.delete() }
+                withContext(Dispatchers.IO) {
+                    it.subSegmentFile.delete()
+                    WaveformPeaks.getPeaksFile(it.subSegmentFile).delete()
+                }
             }
         }
     }
 
     private fun initialiseCurrentSubSegment() {
-        currentSubSegment = SubSegment().apply { startTime = System.currentTimeMillis() }
+        currentSubSegment = SubSegment().apply { startTime = stopwatch.elapsedMillis() }
     }
 
     private fun destroyCurrentSubSegment() {
@@ -135,7 +235,7 @@ class SegmentRecordingManagerImpl @Inject constructor(
     }
 
     private fun addCurrentSubSegmentToSubSegments(file: File) {
-        currentSubSegment!!.endTime = System.currentTimeMillis()
+        currentSubSegment!!.endTime = stopwatch.elapsedMillis()
         currentSubSegment!!.subSegmentFile = file
         subSegments.add(currentSubSegment!!)
     }
@@ -13,6 +13,7 @@ import android.os.IBinder
 import androidx.core.app.NotificationCompat
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.Observer
 import androidx.lifecycle.Transformations
 import com.codebox.podcaster.R
 import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
@@ -34,6 +35,8 @@ class SegmentRecordingService : Service() {
         const val RESUME_RECORDING = 2
         const val ADD_FLAG = 3
         const val GENERATE_SEGMENT = 5
+        const val RECORDING_FAILED = 6
+        const val SEGMENT_RECORDING_FAILED = 7
     }
 
     private val uiScope = MainScope()
@@ -50,8 +53,15 @@ class SegmentRecordingService : Service() {
 
     var stateData = MutableLiveData<Int>()
 
+    // The recorder stopped by itself: what it lost is dropped, recording is paused and the user
+    // told so.
+    private val recordingFailureObserver = Observer<Exception> {
+        uiScope.launch { onRecordingFailed() }
+    }
+
     override fun onCreate() {
         super.onCreate()
+        recordingManager.getRecordingFailureData().observeForever(recordingFailureObserver)
         startRecordingService()
     }
 
@@ -65,6 +75,7 @@ class SegmentRecordingService : Service() {
 
     override fun onDestroy() {
 
+        recordingManager.getRecordingFailureData().removeObserver(recordingFailureObserver)
         uiScope.cancel()
 
         super.onDestroy()
@@ -113,6 +124,18 @@ class SegmentRecordingService : Service() {
         updateRecordingNotification(RESUME_RECORDING)
     }
 
+    private suspend fun onRecordingFailed() {
+        when (stateData.value) {
+            START_RECORDING, RESUME_RECORDING, PAUSE_RECORDING -> {
+                val isEarlierAudioKept = recordingManager.discardFailedRecording()
+                stateData.postValue(PAUSE_RECORDING)
+                updateRecordingNotification(
+                    if (isEarlierAudioKept) RECORDING_FAILED else SEGMENT_RECORDING_FAILED
+                )
+            }
+        }
+    }
+
     suspend fun addFlag() {
         recordingManager.addFlag()
         updateRecordingNotification(ADD_FLAG)
@@ -211,6 +234,12 @@ class SegmentRecordingService : Service() {
             PAUSE_RECORDING -> {
                 builder.setContentText("Recording Paused.")
             }
+            RECORDING_FAILED -> {
+                builder.setContentText("Recording failed, the last part was not saved.")
+            }
+            SEGMENT_RECORDING_FAILED -> {
+                builder.setContentText("Recording failed, the segment was not saved.")
+            }
         }
 
 
@@ -0,0 +1,130 @@
+package com.codebox.podcaster.recorder.segmentrecorder
+
+import android.os.SystemClock
+import android.util.Log
+import com.codebox.podcaster.modules.dispatcher.DispatcherModule
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
+import com.codebox.podcaster.util.adts.AdtsFiles
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+import javax.inject.Inject
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Builds the waveform peaks of a sub segment while it is being recorded, by polling the input level
+ * of the recorder about once per waveform frame. The editor can then draw a segment without
+ * decoding it.
+ *
+ * Polls only sample the level over time: once recorded, the levels are spread over the frames the
+ * recorded file actually holds, so the peaks match its audio whatever the polling jitter. Polling
+ * runs off the main thread, and [stop] waits for it so the level source is never called afterwards.
+ */
+class SubSegmentPeakTracker @Inject constructor(
+    @DispatcherModule.DefaultDispatcher private val defaultDispatcher: CoroutineDispatcher,
+    @DispatcherModule.IODispatcher private val ioDispatcher: CoroutineDispatcher
+) {
+
+    companion object {
+        private const val TAG = "SubSegmentPeakTracker"
+        const val SAMPLE_RATE = 44100
+        const val SAMPLES_PER_FRAME = 1024
+        private const val FRAME_NANOS = SAMPLES_PER_FRAME * 1_000_000_000L / SAMPLE_RATE
+        private const val FRAME_MILLIS = FRAME_NANOS / 1_000_000L
+    }
+
+    private var trackingJob: Job? = null
+
+    // Only touched by the tracking job until stop() joined it.
+    private var gains = IntArray(0)
+    private var numFrames = 0
+
+    /**
+     * @param maxAmplitude returns the maximum absolute amplitude since its last call (0 - 32767),
+     * like [android.media.MediaRecorder.getMaxAmplitude]. Called from a background thread.
+     */
+    fun start(maxAmplitude: () -> Int) {
+        trackingJob?.cancel()
+        gains = IntArray(1024)
+        numFrames = 0
+
+        trackingJob = CoroutineScope(defaultDispatcher).launch {
+
+            val startTime = SystemClock.elapsedRealtimeNanos()
+
+            while (isActive) {
+                delay(FRAME_MILLIS)
+
+                val gain = sqrt(readAmplitude(maxAmplitude).toDouble()).toInt()
+                val elapsedFrames = (SystemClock.elapsedRealtimeNanos() - startTime) / FRAME_NANOS
+
+                // A late poll covers several frames: the amplitude is the max over all of them.
+                while (numFrames < elapsedFrames)
+                    addFrame(gain)
+            }
+        }
+    }
+
+    /**
+     * Stops polling, the level source is not called anymore once this returns.
+     */
+    suspend fun stop() {
+        trackingJob?.cancelAndJoin()
+        trackingJob = null
+    }
+
+    /**
+     * @param recordedFile the complete ADTS file recorded since [start].
+     * @return the polled levels spread over the frames of [recordedFile], or as polled if it
+     * cannot be read.
+     */
+    suspend fun getPeaks(recordedFile: File): WaveformPeaks {
+        val polledGains = gains.copyOf(numFrames)
+        val gains = withContext(ioDispatcher) {
+            try {
+                val durationUs = AdtsFiles.scan(recordedFile).durationUs
+                val numFrames = durationUs * SAMPLE_RATE / (SAMPLES_PER_FRAME * 1_000_000L)
+                resample(polledGains, numFrames.toInt())
+            } catch (e: IOException) {
+                Log.w(TAG, "getPeaks: cannot read ${recordedFile.name}", e)
+                polledGains
+            }
+        }
+        return WaveformPeaks(SAMPLE_RATE, SAMPLES_PER_FRAME, gains)
+    }
+
+    private fun readAmplitude(maxAmplitude: () -> Int): Int {
+        return try {
+            maxAmplitude()
+        } catch (e: IllegalStateException) {
+            0
+        }
+    }
+
+    private fun addFrame(gain: Int) {
+        if (numFrames == gains.size)
+            gains = gains.copyOf(gains.size * 2)
+        gains[numFrames++] = gain
+    }
+
+    /**
+     * Each of the [numFrames] frames takes the max of the polled gains it overlaps.
+     */
+    private fun resample(polledGains: IntArray, numFrames: Int): IntArray {
+        if (polledGains.isEmpty())
+            return IntArray(numFrames)
+        return IntArray(numFrames) { frame ->
+            val from = (frame.toLong() * polledGains.size / numFrames).toInt()
+            val to = max(from + 1, ((frame + 1L) * polledGains.size / numFrames).toInt())
+            (from until to).maxOf { polledGains[it] }
+        }
+    }
+}
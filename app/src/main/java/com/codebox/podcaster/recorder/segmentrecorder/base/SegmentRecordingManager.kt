@@ -12,6 +12,22 @@ interface SegmentRecordingManager {
 
     fun getTickData() : LiveData<Long>
 
+    /**
+     * Emits the error when the recorder fails while recording, [discardFailedRecording] has to be
+     * called then.
+     */
+    fun getRecordingFailureData(): LiveData<Exception>
+
+    /**
+     * Drops the audio lost with the failed recorder and releases it, recording is then paused and
+     * resuming starts a new file. Does nothing if the failure was already handled by
+     * [pauseRecording].
+     *
+     * @return false if the sub segments recorded before the failure are lost too, which happens
+     * when they share the failed file.
+     */
+    suspend fun discardFailedRecording(): Boolean
+
     companion object{
 
         const val START_RECORDING_FAILURE = "Current Recording is under process."
@@ -1,16 +1,40 @@
 package com.codebox.podcaster.repo
 
+import androidx.paging.PagingData
 import com.codebox.podcaster.storage.db.app.segment.Flag
 import com.codebox.podcaster.storage.db.app.segment.Segment
+import com.codebox.podcaster.storage.db.app.segment.SegmentSummary
+import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
+import kotlinx.coroutines.flow.Flow
 import java.io.File
 
 interface SegmentRepository {
 
     suspend fun generateSegmentFile(files: List<File>): File?
 
-    suspend fun persistSegment(segment: Segment): Long
+    suspend fun createSegmentFile(): File?
 
-    suspend fun persistFlagsOfSegment(flags: List<Flag>)
+    suspend fun appendToSegmentFile(segmentFile: File, subSegmentFile: File): Boolean
+
+    suspend fun moveToSegmentFile(subSegmentFile: File, segmentFile: File): Boolean
+
+    suspend fun completeSegmentFile(segmentFile: File, subSegmentFiles: List<File>)
+
+    suspend fun measureAudioDurationsUs(files: List<File>): Map<File, Long>
+
+    /**
+     * Saves [segment] and its [flags] atomically, the id of [segment] being set.
+     *
+     * @return the flags saved, which hold the id of [segment].
+     */
+    suspend fun persistSegmentWithFlags(segment: Segment, flags: List<Flag>): List<Flag>
+
+    /**
+     * The saved segments, most recent first, loaded a page at a time.
+     */
+    fun getSegmentLibrary(): Flow<PagingData<SegmentSummary>>
+
+    suspend fun getSegmentWithFlags(segmentId: Long): SegmentWithFlags?
 
 
 }
@@ -1,10 +1,17 @@
 package com.codebox.podcaster.repo
 
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
+import com.codebox.podcaster.storage.db.app.AppDatabase
 import com.codebox.podcaster.storage.db.app.segment.Flag
-import com.codebox.podcaster.storage.db.app.segment.FlagDao
 import com.codebox.podcaster.storage.db.app.segment.Segment
 import com.codebox.podcaster.storage.db.app.segment.SegmentDao
+import com.codebox.podcaster.storage.db.app.segment.SegmentLibraryPagingSource
+import com.codebox.podcaster.storage.db.app.segment.SegmentSummary
+import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
 import com.codebox.podcaster.storage.disk.segmentstorage.SegmentDiskStorage
+import kotlinx.coroutines.flow.Flow
 import java.io.File
 import javax.inject.Inject
 
@@ -15,23 +22,49 @@ import javax.inject.Inject
 class SegmentRepositoryImpl @Inject constructor (
     private val segmentStorage: SegmentDiskStorage,
     private val segmentDao: SegmentDao,
-    private val flagDao: FlagDao
+    private val appDatabase: AppDatabase
 ) : SegmentRepository {
 
     override suspend fun generateSegmentFile(files: List<File>): File? {
         return segmentStorage.joinSubSegmentFiles(files)
     }
 
-    override suspend fun persistSegment(segment: Segment): Long {
-        return insertSegmentInDB(segment)
+    override suspend fun createSegmentFile(): File? {
+        return segmentStorage.createSegmentFile()
     }
 
-    override suspend fun persistFlagsOfSegment(flags: List<Flag>) {
-        flagDao.insertFlags(flags)
+    override suspend fun appendToSegmentFile(segmentFile: File, subSegmentFile: File): Boolean {
+        return segmentStorage.appendSubSegmentFile(segmentFile, subSegmentFile)
     }
 
+    override suspend fun moveToSegmentFile(subSegmentFile: File, segmentFile: File): Boolean {
+        return segmentStorage.moveSubSegmentFile(subSegmentFile, segmentFile)
+    }
+
+    override suspend fun completeSegmentFile(segmentFile: File, subSegmentFiles: List<File>) {
+        segmentStorage.writeSegmentPeaks(segmentFile, subSegmentFiles)
+        segmentStorage.writeSegmentIndex(segmentFile)
+    }
+
+    override suspend fun measureAudioDurationsUs(files: List<File>): Map<File, Long> {
+        return segmentStorage.measureAudioDurationsUs(files)
+    }
+
+    override suspend fun persistSegmentWithFlags(segment: Segment, flags: List<Flag>): List<Flag> {
+        return segmentDao.insertSegmentWithFlags(segment, flags)
+    }
+
+    override fun getSegmentLibrary(): Flow<PagingData<SegmentSummary>> {
+        val config = PagingConfig(pageSize = LIBRARY_PAGE_SIZE, enablePlaceholders = false)
+        return Pager(config) { SegmentLibraryPagingSource(segmentDao, appDatabase) }.flow
+    }
 
-    private suspend fun insertSegmentInDB(segment: Segment) =
-        segmentDao.insertSegment(segment)
+    override suspend fun getSegmentWithFlags(segmentId: Long): SegmentWithFlags? {
+        return segmentDao.getSegmentWithFlags(segmentId)
+    }
+
+    companion object {
+        private const val LIBRARY_PAGE_SIZE = 30
+    }
 
 }
\ No newline at end of file
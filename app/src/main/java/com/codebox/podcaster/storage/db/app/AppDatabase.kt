@@ -4,28 +4,79 @@ import android.content.Context
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.codebox.podcaster.storage.db.app.journal.JournalDao
+import com.codebox.podcaster.storage.db.app.journal.JournalEntry
 import com.codebox.podcaster.storage.db.app.segment.Flag
-import com.codebox.podcaster.storage.db.app.segment.FlagDao
 import com.codebox.podcaster.storage.db.app.segment.Segment
 import com.codebox.podcaster.storage.db.app.segment.SegmentDao
 
 /**
  * Created by Codebox on 02/03/21
  */
-@Database(entities = arrayOf(Segment::class, Flag::class), version = 1)
+@Database(entities = arrayOf(Segment::class, Flag::class, JournalEntry::class), version = 4)
 abstract class AppDatabase : RoomDatabase() {
 
     abstract fun segmentDao(): SegmentDao
-    abstract fun flagDao(): FlagDao
+    abstract fun journalDao(): JournalDao
 
 
     companion object {
 
         private const val NAME = "app-database"
 
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `JournalEntry` (`sessionId` INTEGER NOT NULL, " +
+                            "`type` INTEGER NOT NULL, `time` INTEGER NOT NULL, `filePath` TEXT, " +
+                            "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL)"
+                )
+            }
+        }
+
+        // Flag.secondsAfterRecording becomes Flag.positionUs.
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `Flag_new` (`segmentId` INTEGER NOT NULL, " +
+                            "`positionUs` INTEGER NOT NULL, `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL)"
+                )
+                database.execSQL(
+                    "INSERT INTO `Flag_new` (`segmentId`, `positionUs`, `id`) " +
+                            "SELECT `segmentId`, `secondsAfterRecording` * 1000000, `id` FROM `Flag`"
+                )
+                database.execSQL("DROP TABLE `Flag`")
+                database.execSQL("ALTER TABLE `Flag_new` RENAME TO `Flag`")
+            }
+        }
+
+        // Index of the flags of a segment, and Segment.createdAt to page the library by.
+        private val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_Flag_segmentId` ON `Flag` (`segmentId`)"
+                )
+                database.execSQL(
+                    "ALTER TABLE `Segment` ADD COLUMN `createdAt` INTEGER NOT NULL DEFAULT 0"
+                )
+                database.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_Segment_createdAt` ON `Segment` (`createdAt`)"
+                )
+            }
+        }
 
+        /**
+         * Opens the database, which is expensive: callers keep a single instance per process (see
+         * AppDatabaseModule). With write-ahead logging a transaction commits with one sync of the
+         * log, and reads are not blocked by a write.
+         */
         fun getDatabase(applicationContext: Context): AppDatabase {
-            return Room.databaseBuilder(applicationContext, AppDatabase::class.java, NAME).build()
+            return Room.databaseBuilder(applicationContext, AppDatabase::class.java, NAME)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
+                .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
+                .build()
         }
 
     }
@@ -0,0 +1,22 @@
+package com.codebox.podcaster.storage.db.app.journal
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.Query
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+@Dao
+interface JournalDao {
+
+    @Insert
+    suspend fun insertEntry(entry: JournalEntry)
+
+    @Query("Select * from JournalEntry order by id")
+    suspend fun getEntries(): List<JournalEntry>
+
+    @Query("Delete from JournalEntry where sessionId = :sessionId")
+    suspend fun deleteSession(sessionId: Long)
+
+}
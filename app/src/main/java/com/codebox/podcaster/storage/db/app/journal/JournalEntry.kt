@@ -0,0 +1,37 @@
+package com.codebox.podcaster.storage.db.app.journal
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * One event of a recording session, see [RecordingJournal].
+ */
+@Entity
+class JournalEntry(
+    @ColumnInfo
+    val sessionId: Long,
+    @ColumnInfo
+    val type: Int,
+    @ColumnInfo
+    val time: Long,
+    @ColumnInfo
+    val filePath: String? = null,
+    @PrimaryKey(autoGenerate = true) val id: Long = 0,
+) {
+
+    companion object {
+        const val SUB_SEGMENT_STARTED = 0
+        const val SUB_SEGMENT_STOPPED = 1
+        const val FLAG_ADDED = 2
+        const val SEGMENT_FILE_CREATED = 3
+        const val SUB_SEGMENT_FILE_MOVED = 4
+    }
+
+    override fun toString(): String {
+        return "Session: $sessionId, type: $type, time: $time, file: $filePath"
+    }
+
+}
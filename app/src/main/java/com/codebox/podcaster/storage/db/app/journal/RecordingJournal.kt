@@ -0,0 +1,98 @@
+package com.codebox.podcaster.storage.db.app.journal
+
+import com.codebox.podcaster.storage.db.app.segment.SubSegment
+import java.io.File
+import javax.inject.Inject
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Append only log of a recording session: every sub segment start and stop and every flag is
+ * inserted as it happens, so a session interrupted by the death of the process can be rebuilt on
+ * the next launch. The entries of a session are deleted once its segment is persisted.
+ */
+class RecordingJournal @Inject constructor(private val journalDao: JournalDao) {
+
+    /**
+     * A session rebuilt from the journal. The last sub segment has no end time (-1) if the session
+     * was interrupted while recording.
+     *
+     * @param segmentFiles segment files the session started assembling, see [segmentFileCreated].
+     * @param movedFile where the file shared by the sub segments may have been moved to, see
+     * [subSegmentFileMoved].
+     */
+    class Session(
+        val sessionId: Long,
+        val subSegments: List<SubSegment>,
+        val segmentFiles: List<File>,
+        val movedFile: File?
+    )
+
+    suspend fun subSegmentStarted(sessionId: Long, subSegmentFile: File, time: Long) {
+        insert(sessionId, JournalEntry.SUB_SEGMENT_STARTED, time, subSegmentFile)
+    }
+
+    suspend fun subSegmentStopped(sessionId: Long, subSegmentFile: File, time: Long) {
+        insert(sessionId, JournalEntry.SUB_SEGMENT_STOPPED, time, subSegmentFile)
+    }
+
+    suspend fun flagAdded(sessionId: Long, time: Long) {
+        insert(sessionId, JournalEntry.FLAG_ADDED, time)
+    }
+
+    /**
+     * To be called before anything is written to [segmentFile], which is left incomplete if the
+     * session is interrupted.
+     */
+    suspend fun segmentFileCreated(sessionId: Long, segmentFile: File) {
+        insert(sessionId, JournalEntry.SEGMENT_FILE_CREATED, 0, segmentFile)
+    }
+
+    /**
+     * To be called before the file of every sub segment is moved to [segmentFile], so that the
+     * audio can be found if the session is interrupted after the move.
+     */
+    suspend fun subSegmentFileMoved(sessionId: Long, segmentFile: File) {
+        insert(sessionId, JournalEntry.SUB_SEGMENT_FILE_MOVED, 0, segmentFile)
+    }
+
+    suspend fun clear(sessionId: Long) {
+        journalDao.deleteSession(sessionId)
+    }
+
+    /**
+     * Rebuilds every session still in the journal, in a single pass over its entries.
+     */
+    suspend fun readSessions(): List<Session> {
+        val sessions = linkedMapOf<Long, MutableList<SubSegment>>()
+        val segmentFiles = mutableMapOf<Long, MutableList<File>>()
+        val movedFiles = mutableMapOf<Long, File>()
+
+        for (entry in journalDao.getEntries()) {
+            val subSegments = sessions.getOrPut(entry.sessionId) { mutableListOf() }
+            val current = subSegments.lastOrNull()?.takeIf { it.endTime < 0 }
+
+            when (entry.type) {
+                JournalEntry.SUB_SEGMENT_STARTED -> subSegments.add(SubSegment().apply {
+                    startTime = entry.time
+                    subSegmentFile = File(entry.filePath!!)
+                })
+                JournalEntry.SUB_SEGMENT_STOPPED -> current?.endTime = entry.time
+                JournalEntry.FLAG_ADDED -> current?.flags?.add(entry.time)
+                JournalEntry.SEGMENT_FILE_CREATED ->
+                    segmentFiles.getOrPut(entry.sessionId) { mutableListOf() }
+                        .add(File(entry.filePath!!))
+                JournalEntry.SUB_SEGMENT_FILE_MOVED ->
+                    movedFiles[entry.sessionId] = File(entry.filePath!!)
+            }
+        }
+
+        return sessions.map {
+            Session(it.key, it.value, segmentFiles[it.key].orEmpty(), movedFiles[it.key])
+        }
+    }
+
+    private suspend fun insert(sessionId: Long, type: Int, time: Long, file: File? = null) {
+        journalDao.insertEntry(JournalEntry(sessionId, type, time, file?.absolutePath))
+    }
+}
@@ -3,24 +3,27 @@ package com.codebox.podcaster.storage.db.app.segment
 import android.os.Parcelable
 import androidx.room.ColumnInfo
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import kotlinx.android.parcel.Parcelize
 
 /**
  * Created by Codebox on 05/03/21
+ *
+ * @param positionUs position of the flag in the audio of its segment, in microseconds.
  */
 @Parcelize
-@Entity
+@Entity(indices = [Index("segmentId")])
 class Flag(
     @ColumnInfo
     val segmentId: Long,
     @ColumnInfo
-    val secondsAfterRecording: Int,
+    val positionUs: Long,
     @PrimaryKey(autoGenerate = true) val id: Long = 0,
 ) : Parcelable{
 
     override fun toString(): String {
-        return "Segment Id: $segmentId, seconds: $secondsAfterRecording"
+        return "Segment Id: $segmentId, position: $positionUs us"
     }
 
 }
\ No newline at end of file
@@ -1,22 +1,29 @@
 package com.codebox.podcaster.storage.db.app.segment
 
 import android.os.Parcelable
+import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.Ignore
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import kotlinx.android.parcel.Parcelize
 import java.io.File
 
 /**
  * Created by Codebox on 02/03/21
+ *
+ * @param createdAt wall clock time the segment was saved at, in milliseconds. 0 for segments saved
+ * before it was recorded.
  */
 @Parcelize
-@Entity
+@Entity(indices = [Index("createdAt")])
 data class Segment(
     var filePath: String,
     var durationInMillis: Long,
     @PrimaryKey(autoGenerate = true)
     var id: Long = 0,
+    @ColumnInfo(defaultValue = "0")
+    var createdAt: Long = System.currentTimeMillis(),
 ) : Parcelable {
     @Ignore
     val file: File = File(filePath)
@@ -9,13 +9,57 @@ import androidx.room.Transaction
  * Created by Codebox on 02/03/21
  */
 @Dao
-interface SegmentDao {
+abstract class SegmentDao {
 
     @Insert
-    suspend fun insertSegment(segment: Segment): Long
+    abstract suspend fun insertSegment(segment: Segment): Long
+
+    @Insert
+    abstract suspend fun insertFlags(flags: List<Flag>)
+
+    /**
+     * Inserts [segment] and its [flags] in a single transaction, so that a segment is never saved
+     * without its flags. The segmentId of [flags] is ignored.
+     *
+     * @return the flags as inserted, holding the id of [segment], which is set.
+     */
+    @Transaction
+    open suspend fun insertSegmentWithFlags(segment: Segment, flags: List<Flag>): List<Flag> {
+        segment.id = insertSegment(segment)
+        val segmentFlags = flags.map { Flag(segment.id, it.positionUs) }
+        insertFlags(segmentFlags)
+        return segmentFlags
+    }
 
     @Transaction
-    @Query("Select * from Segment")
-    suspend fun getSegmentWithFlags(): List<SegmentWithFlags>
+    @Query("Select * from Segment where id = :segmentId")
+    abstract suspend fun getSegmentWithFlags(segmentId: Long): SegmentWithFlags?
+
+    /**
+     * The [limit] most recent segments, see [SegmentLibraryPagingSource].
+     */
+    @Query("$SELECT_SUMMARY order by createdAt desc, id desc limit :limit")
+    abstract suspend fun getLatestSegmentSummaries(limit: Int): List<SegmentSummary>
+
+    /**
+     * The [limit] segments following the segment created at [createdAt] with [id], in the order of
+     * [getLatestSegmentSummaries]. The bound on createdAt alone lets the index skip every segment
+     * of the previous pages.
+     */
+    @Query(
+        "$SELECT_SUMMARY where createdAt <= :createdAt and (createdAt < :createdAt or id < :id) " +
+                "order by createdAt desc, id desc limit :limit"
+    )
+    abstract suspend fun getSegmentSummariesAfter(
+        createdAt: Long,
+        id: Long,
+        limit: Int
+    ): List<SegmentSummary>
+
+    companion object {
+        // Flags are counted per segment through the index on Flag.segmentId, not loaded.
+        private const val SELECT_SUMMARY = "Select Segment.*, (Select count(*) from Flag " +
+                "where Flag.segmentId = Segment.id) as flagCount from Segment"
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+package com.codebox.podcaster.storage.db.app.segment
+
+import android.annotation.SuppressLint
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import androidx.room.InvalidationTracker
+import com.codebox.podcaster.storage.db.app.AppDatabase
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Pages the library, most recent segments first, by keyset: a page starts after the last segment
+ * of the previous one rather than at an offset, so each page is an index range scan whose cost
+ * does not depend on how many segments come before it.
+ *
+ * As with the paging sources Room generates, the source is invalidated whenever a segment or a
+ * flag changes, and the library is then loaded again from its first page.
+ */
+class SegmentLibraryPagingSource(
+    private val segmentDao: SegmentDao,
+    private val database: AppDatabase
+) : PagingSource<SegmentLibraryPagingSource.Key, SegmentSummary>() {
+
+    /**
+     * The segment a page follows.
+     */
+    data class Key(val createdAt: Long, val id: Long)
+
+    private val observer = object : InvalidationTracker.Observer(TABLES) {
+        override fun onInvalidated(tables: MutableSet<String>) {
+            invalidate()
+        }
+    }
+
+    private val isObserverRegistered = AtomicBoolean(false)
+
+    override suspend fun load(params: LoadParams<Key>): LoadResult<Key, SegmentSummary> {
+        registerObserverIfNecessary()
+
+        // Pages are only appended, the first page being the most recent segments.
+        if (params is LoadParams.Prepend)
+            return LoadResult.Page(emptyList(), prevKey = null, nextKey = null)
+
+        return try {
+            val key = params.key
+            val summaries = if (key == null)
+                segmentDao.getLatestSegmentSummaries(params.loadSize)
+            else
+                segmentDao.getSegmentSummariesAfter(key.createdAt, key.id, params.loadSize)
+
+            val last = summaries.lastOrNull()?.segment
+            val nextKey = if (last == null || summaries.size < params.loadSize)
+                null
+            else
+                Key(last.createdAt, last.id)
+            LoadResult.Page(summaries, prevKey = null, nextKey = nextKey)
+        } catch (e: Exception) {
+            LoadResult.Error(e)
+        }
+    }
+
+    /**
+     * Registers the observer on the first load, off the main thread, as the tracker syncs its
+     * triggers with the database. The tracker only holds it weakly, so a source dropped by the
+     * Pager without being invalidated is not kept alive.
+     */
+    @SuppressLint("RestrictedApi")
+    private suspend fun registerObserverIfNecessary() {
+        if (isObserverRegistered.compareAndSet(false, true)) {
+            withContext(Dispatchers.IO) {
+                database.invalidationTracker.addWeakObserver(observer)
+            }
+        }
+    }
+
+    // The library is refreshed from its most recent segment, where new segments appear. Pages are
+    // not prepended, so refreshing at the position in view would leave the segments above it out,
+    // the cost being that the list scrolls back to its top whenever a segment is saved.
+    override fun getRefreshKey(state: PagingState<Key, SegmentSummary>): Key? = null
+
+    companion object {
+        private val TABLES = arrayOf("Segment", "Flag")
+    }
+}
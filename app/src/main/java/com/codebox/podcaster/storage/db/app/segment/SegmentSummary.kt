@@ -0,0 +1,14 @@
+package com.codebox.podcaster.storage.db.app.segment
+
+import androidx.room.Embedded
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * A segment as listed in the library, with the number of its flags rather than the flags, which
+ * are loaded with [SegmentDao.getSegmentWithFlags] when the segment is opened.
+ */
+data class SegmentSummary(
+    @Embedded val segment: Segment,
+    val flagCount: Int
+)
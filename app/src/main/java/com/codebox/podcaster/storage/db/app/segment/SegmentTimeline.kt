@@ -0,0 +1,63 @@
+package com.codebox.podcaster.storage.db.app.segment
+
+import java.io.File
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Maps the stopwatch times of sub segments to positions in the audio of the segment joined from
+ * them, using the duration actually recorded in each sub segment file: the recorder starts and
+ * stops a little after the stopwatch, and flags must land where their audio is.
+ *
+ * @param audioDurationsUs recorded duration of each sub segment file. The stopwatch duration is
+ * used for a file which is missing. Sub segments sharing a file (recorded by a PausableRecorder)
+ * split it in proportion to their stopwatch durations.
+ */
+class SegmentTimeline(
+    private val subSegments: List<SubSegment>,
+    audioDurationsUs: Map<File, Long>
+) {
+
+    private val audioStartsUs = LongArray(subSegments.size)
+    private val audioLengthsUs = LongArray(subSegments.size)
+
+    val durationUs: Long
+
+    init {
+        val stopwatchMillisByFile = subSegments.groupBy { it.subSegmentFile }
+            .mapValues { entry -> entry.value.sumOf { it.stopwatchMillis() } }
+
+        var positionUs = 0L
+        subSegments.forEachIndexed { index, subSegment ->
+            val stopwatchMillis = subSegment.stopwatchMillis()
+            val fileDurationUs = audioDurationsUs[subSegment.subSegmentFile]
+            val fileStopwatchMillis = stopwatchMillisByFile.getValue(subSegment.subSegmentFile)
+
+            audioStartsUs[index] = positionUs
+            audioLengthsUs[index] = if (fileDurationUs == null || fileStopwatchMillis <= 0)
+                stopwatchMillis * 1000
+            else
+                fileDurationUs * stopwatchMillis / fileStopwatchMillis
+            positionUs += audioLengthsUs[index]
+        }
+        durationUs = positionUs
+    }
+
+    fun toFlags(segmentId: Long): List<Flag> {
+        return subSegments.flatMapIndexed { index, subSegment ->
+            subSegment.flags.map { Flag(segmentId, positionUs(index, it)) }
+        }
+    }
+
+    private fun positionUs(index: Int, time: Long): Long {
+        val subSegment = subSegments[index]
+        val stopwatchMillis = subSegment.stopwatchMillis()
+        if (stopwatchMillis <= 0)
+            return audioStartsUs[index]
+
+        val offsetMillis = (time - subSegment.startTime).coerceIn(0, stopwatchMillis)
+        return audioStartsUs[index] + audioLengthsUs[index] * offsetMillis / stopwatchMillis
+    }
+
+    private fun SubSegment.stopwatchMillis() = endTime - startTime
+}
@@ -4,6 +4,9 @@ import java.io.File
 
 /**
  * Created by Codebox on 02/03/21
+ *
+ * Times are [com.codebox.podcaster.util.Stopwatch.elapsedMillis] of the recording, so pauses are
+ * not counted.
  */
 class SubSegment {
 
@@ -12,4 +15,4 @@ class SubSegment {
     lateinit var subSegmentFile: File
     val flags = mutableListOf<Long>()
 
-}
\ No newline at end of file
+}
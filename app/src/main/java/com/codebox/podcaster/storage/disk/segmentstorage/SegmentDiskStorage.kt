@@ -18,4 +18,35 @@ interface SegmentDiskStorage : DiskStorage {
     }
 
     suspend fun joinSubSegmentFiles(files : List<File>) : File?
+
+    suspend fun createSegmentFile(): File?
+
+    /**
+     * Appends the audio of [subSegmentFile] to [segmentFile]. On failure [segmentFile] is left as
+     * it was.
+     */
+    suspend fun appendSubSegmentFile(segmentFile: File, subSegmentFile: File): Boolean
+
+    /**
+     * Moves [subSegmentFile], with its peaks, to [segmentFile] when it is all the segment is made
+     * of, instead of copying its audio, and indexes it. Fails if both are not on the same file
+     * system.
+     */
+    suspend fun moveSubSegmentFile(subSegmentFile: File, segmentFile: File): Boolean
+
+    /**
+     * Writes the peaks of a segment made of [subSegmentFiles], once nothing is appended to it anymore.
+     */
+    suspend fun writeSegmentPeaks(segmentFile: File, subSegmentFiles: List<File>)
+
+    /**
+     * Writes the frame index of a segment, see AdtsFrameIndex, once nothing is appended to it
+     * anymore.
+     */
+    suspend fun writeSegmentIndex(segmentFile: File)
+
+    /**
+     * Duration of the audio actually recorded in each file. Unreadable files are left out.
+     */
+    suspend fun measureAudioDurationsUs(files: List<File>): Map<File, Long>
 }
\ No newline at end of file
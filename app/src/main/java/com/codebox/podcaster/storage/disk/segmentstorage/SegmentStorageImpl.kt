@@ -1,16 +1,22 @@
 package com.codebox.podcaster.storage.disk.segmentstorage
 
 import android.os.Environment
+import android.os.SystemClock
+import android.util.Log
 import com.codebox.podcaster.modules.dispatcher.DispatcherModule
 import com.codebox.podcaster.storage.disk.base.FileUtil
 import com.codebox.podcaster.storage.disk.segmentstorage.SegmentDiskStorage.Companion.SEGMENTS_DIR
 import com.codebox.podcaster.storage.disk.segmentstorage.SegmentDiskStorage.Companion.SEGMENT_FILE_EXTENSION
 import com.codebox.podcaster.storage.disk.segmentstorage.SegmentDiskStorage.Companion.SEGMENT_FILE_PREFIX
-import com.codebox.podcaster.util.AudioUtil
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
 import com.codebox.podcaster.util.DateTimeUtil
+import com.codebox.podcaster.util.adts.AdtsFiles
+import com.codebox.podcaster.util.adts.AdtsFrameIndex
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
 import javax.inject.Inject
 
 
@@ -19,7 +25,6 @@ import javax.inject.Inject
  */
 class SegmentStorageImpl @Inject constructor(
     private val dateTimeUtil: DateTimeUtil,
-    private val audioUtil: AudioUtil,
     private val fileUtil: FileUtil,
     @DispatcherModule.DefaultDispatcher private val defaultDispatcher: CoroutineDispatcher
 ) :
@@ -34,15 +39,130 @@ class SegmentStorageImpl @Inject constructor(
     override suspend fun joinSubSegmentFiles(files: List<File>): File? {
 
         return withContext(defaultDispatcher) scope@{
-            val segmentDirectory = getSegmentsDir() ?: return@scope null
-            val outputFilePath = getNewSegmentFilePath(segmentDirectory)
-            val isSuccessful = audioUtil.concatenateFiles(files, outputFilePath)
+            val outputFile = createSegmentFile() ?: return@scope null
 
-            if (isSuccessful) File(outputFilePath) else null
+            if (!joinAdtsFiles(files, outputFile))
+                return@scope null
+
+            writeSegmentPeaks(outputFile, files)
+            writeSegmentIndex(outputFile)
+            outputFile
         }
 
     }
 
+    override suspend fun createSegmentFile(): File? {
+        val segmentDirectory = getSegmentsDir() ?: return null
+        return File(getNewSegmentFilePath(segmentDirectory))
+    }
+
+    override suspend fun appendSubSegmentFile(segmentFile: File, subSegmentFile: File): Boolean {
+        return withContext(fileUtil.ioDispatcher) {
+            try {
+                FileOutputStream(segmentFile, true).use { output ->
+                    val channel = output.channel
+                    val length = channel.size()
+                    try {
+                        AdtsFiles.append(listOf(subSegmentFile), channel)
+                    } catch (e: IOException) {
+                        channel.truncate(length)
+                        throw e
+                    }
+                }
+                true
+            } catch (e: IOException) {
+                Log.e(TAG, "appendSubSegmentFile: failed for ${subSegmentFile.name}", e)
+                false
+            }
+        }
+    }
+
+    override suspend fun moveSubSegmentFile(subSegmentFile: File, segmentFile: File): Boolean {
+        return withContext(fileUtil.ioDispatcher) {
+            if (!subSegmentFile.renameTo(segmentFile)) {
+                Log.e(TAG, "moveSubSegmentFile: cannot move ${subSegmentFile.name}")
+                return@withContext false
+            }
+            // Renaming keeps the size and modification time the peaks are valid for.
+            val peaksFile = WaveformPeaks.getPeaksFile(subSegmentFile)
+            if (peaksFile.isFile && !peaksFile.renameTo(WaveformPeaks.getPeaksFile(segmentFile)))
+                peaksFile.delete()
+            writeSegmentIndex(segmentFile)
+            true
+        }
+    }
+
+    /**
+     * Sub segments are ADTS streams: joining them is appending their frames, which
+     * [AdtsFiles.join] does without copying the audio through the heap.
+     */
+    private suspend fun joinAdtsFiles(files: List<File>, outputFile: File): Boolean {
+        return withContext(fileUtil.ioDispatcher) {
+            val startTime = SystemClock.elapsedRealtime()
+            try {
+                val joined = AdtsFiles.join(files, outputFile)
+                val elapsedMillis = maxOf(SystemClock.elapsedRealtime() - startTime, 1)
+                val bytesPerSecond = joined.validLength * 1000 / elapsedMillis
+                Log.d(
+                    TAG,
+                    "joinAdtsFiles: ${joined.validLength} bytes from ${files.size} files " +
+                            "in $elapsedMillis ms ($bytesPerSecond bytes/s)"
+                )
+                if (joined.isEmpty)
+                    outputFile.delete()
+                !joined.isEmpty
+            } catch (e: IOException) {
+                Log.e(TAG, "joinAdtsFiles: failed for ${outputFile.name}", e)
+                outputFile.delete()
+                false
+            }
+        }
+    }
+
+    override suspend fun measureAudioDurationsUs(files: List<File>): Map<File, Long> {
+        return withContext(fileUtil.ioDispatcher) {
+            val durations = mutableMapOf<File, Long>()
+            for (file in files) {
+                try {
+                    durations[file] = AdtsFiles.scan(file).durationUs
+                } catch (e: IOException) {
+                    Log.w(TAG, "measureAudioDurationsUs: cannot read ${file.name}", e)
+                }
+            }
+            durations
+        }
+    }
+
+    /**
+     * Joins the peaks recorded with every sub segment, so the segment can be drawn without being
+     * decoded. Nothing is written if any of them is missing.
+     */
+    override suspend fun writeSegmentPeaks(segmentFile: File, subSegmentFiles: List<File>) {
+        withContext(fileUtil.ioDispatcher) {
+            val peaks = WaveformPeaks.concat(subSegmentFiles.map { WaveformPeaks.read(it) })
+                ?: return@withContext
+            try {
+                peaks.write(segmentFile)
+            } catch (e: IOException) {
+                Log.w(TAG, "writeSegmentPeaks: failed for ${segmentFile.name}", e)
+            }
+        }
+    }
+
+
+    /**
+     * Indexes the frames of the segment while they are still in the page cache, so that editing it
+     * can seek and trim without scanning it.
+     */
+    override suspend fun writeSegmentIndex(segmentFile: File) {
+        withContext(fileUtil.ioDispatcher) {
+            try {
+                AdtsFrameIndex.build(segmentFile).write(segmentFile)
+            } catch (e: IOException) {
+                Log.w(TAG, "writeSegmentIndex: failed for ${segmentFile.name}", e)
+            }
+        }
+    }
 
     private fun getNewSegmentFilePath(directory: File): String {
         val fileName = createSegmentFileName()
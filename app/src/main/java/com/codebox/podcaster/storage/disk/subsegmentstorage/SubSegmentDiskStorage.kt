@@ -1,6 +1,7 @@
 package com.codebox.podcaster.storage.disk.subsegmentstorage
 
 import com.codebox.podcaster.storage.disk.base.DiskStorage
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
 import java.io.File
 
 /**
@@ -16,4 +17,10 @@ interface SubSegmentDiskStorage : DiskStorage {
 
 
     suspend fun createNewFile(): File?
+
+    /**
+     * Persists the peaks measured while recording [subSegmentFile] next to it. Must be called once
+     * the file is complete.
+     */
+    suspend fun writePeaks(subSegmentFile: File, peaks: WaveformPeaks)
 }
\ No newline at end of file
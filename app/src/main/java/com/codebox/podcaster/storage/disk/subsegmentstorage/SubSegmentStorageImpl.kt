@@ -1,11 +1,17 @@
 package com.codebox.podcaster.storage.disk.subsegmentstorage
 
 import android.os.Environment
+import android.util.Log
+import com.codebox.podcaster.modules.dispatcher.DispatcherModule
 import com.codebox.podcaster.storage.disk.base.FileUtil
 import com.codebox.podcaster.storage.disk.segmentstorage.SegmentDiskStorage
 import com.codebox.podcaster.storage.disk.subsegmentstorage.SubSegmentDiskStorage.Companion.SUB_SEGMENT_FILE_PREFIX
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
 import com.codebox.podcaster.util.DateTimeUtil
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
 import javax.inject.Inject
 
 /**
@@ -13,10 +19,15 @@ import javax.inject.Inject
  */
 class SubSegmentStorageImpl @Inject constructor(
     private val fileUtil: FileUtil,
-    private val dateTimeUtil: DateTimeUtil
+    private val dateTimeUtil: DateTimeUtil,
+    @DispatcherModule.IODispatcher private val ioDispatcher: CoroutineDispatcher
 ) :
     SubSegmentDiskStorage {
 
+    companion object {
+        private const val TAG = "SubSegmentStorageImpl"
+    }
+
 
     override suspend fun createNewFile(): File? {
 
@@ -27,6 +38,17 @@ class SubSegmentStorageImpl @Inject constructor(
         return null
     }
 
+    override suspend fun writePeaks(subSegmentFile: File, peaks: WaveformPeaks) {
+        withContext(ioDispatcher) {
+            try {
+                peaks.write(subSegmentFile)
+            } catch (e: IOException) {
+                // Not fatal, the editor decodes the segment when its peaks are missing.
+                Log.w(TAG, "writePeaks: failed for ${subSegmentFile.name}", e)
+            }
+        }
+    }
+
     private fun createSubSegmentFile(directory: File): File? {
         val fileName = createSubSegmentFileName()
         val draftFile = File(directory, fileName)
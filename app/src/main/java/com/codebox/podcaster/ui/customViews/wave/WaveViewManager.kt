@@ -112,10 +112,10 @@ class WaveViewManager(private val waveView: View) : AutoCloseable {
             val flags = ArrayList<Flag>()
             for (i in 0 until size) {
                 val flagAt = (0 until duration).random()
-                flags.add(Flag(-1, flagAt))
+                flags.add(Flag(-1, flagAt * 1_000_000L))
             }
 
-            flags.sortBy { it.secondsAfterRecording }
+            flags.sortBy { it.positionUs }
 
             flags
         }
@@ -133,7 +133,7 @@ class WaveViewManager(private val waveView: View) : AutoCloseable {
 
             for (i in 0 until streaks) {
 
-                if (flagIndex >= 0 && flagIndex < flags.size && i == flags[flagIndex].secondsAfterRecording) {
+                if (flagIndex >= 0 && flagIndex < flags.size && i.toLong() == flags[flagIndex].positionUs / 1_000_000) {
                     waveElements.add(WaveElement.WaveOnlyFlag)
                     flagIndex++;
                 } else {
@@ -0,0 +1,194 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a codec between a Source of input buffers and a Sink of output buffers, as fast as the
+ * codec goes.
+ * <p>
+ * The codec tells when its buffers are available (MediaCodec.Callback, see MediaCodecAdapter) and
+ * the stages are called right away on its thread: the Source fills the codec's input buffer and
+ * the Sink reads the codec's output buffer, nothing is polled nor copied in between. Nothing here
+ * depends on Android, so that the pipeline can be tested with fake codecs.
+ */
+public final class CodecPipeline {
+    // Same values as MediaCodec.BUFFER_FLAG_*.
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    // Source.read() results.
+    public static final int END_OF_STREAM = -1;
+    public static final int STOP = -2;
+
+    /**
+     * The part of MediaCodec the pipeline uses.
+     */
+    public interface Codec {
+        // Configures and starts the codec, which then calls callback from its own thread.
+        void start(Callback callback) throws IOException;
+
+        ByteBuffer getInputBuffer(int index);
+
+        ByteBuffer getOutputBuffer(int index);
+
+        void queueInputBuffer(int index, int size, long presentationTimeUs, int flags);
+
+        void releaseOutputBuffer(int index);
+
+        // Stops the codec. No callback is called once it returns.
+        void release();
+    }
+
+    public interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(
+                int index, int offset, int size, long presentationTimeUs, int flags);
+
+        void onError(Exception e);
+    }
+
+    public interface Source {
+        /**
+         * Writes the next input at the start of buffer, which has been cleared.
+         *
+         * @return the number of bytes written, END_OF_STREAM once there is no more input, or STOP
+         * to end the pipeline right away (e.g. when cancelled).
+         */
+        int read(ByteBuffer buffer) throws IOException;
+
+        // Presentation time of the input the last read() wrote.
+        long getPresentationTimeUs();
+    }
+
+    public interface Sink {
+        /**
+         * Consumes the output between position() and limit(), only valid during the call.
+         *
+         * @return false to end the pipeline without waiting for the end of the stream.
+         */
+        boolean write(ByteBuffer output, long presentationTimeUs, int flags) throws IOException;
+    }
+
+    private CodecPipeline() {
+    }
+
+    /**
+     * Feeds the whole source to the codec and its output to the sink, then releases the codec.
+     * Returns once the codec output its end of stream, or a stage ended the pipeline.
+     *
+     * @throws IOException thrown by a stage, or if the codec failed.
+     */
+    public static void run(Codec codec, Source source, Sink sink) throws IOException {
+        Run run = new Run(codec, source, sink);
+        try {
+            codec.start(run);
+            run.await();
+        } finally {
+            codec.release();
+        }
+    }
+
+    private static class Run implements Callback {
+        private final Codec mCodec;
+        private final Source mSource;
+        private final Sink mSink;
+        private boolean mInputDone;  // only used on the codec thread.
+        private boolean mDone;       // guarded by this.
+        private Throwable mError;    // guarded by this.
+
+        Run(Codec codec, Source source, Sink sink) {
+            mCodec = codec;
+            mSource = source;
+            mSink = sink;
+        }
+
+        @Override
+        public void onInputBufferAvailable(int index) {
+            if (mInputDone || isDone()) {
+                return;
+            }
+            try {
+                ByteBuffer buffer = mCodec.getInputBuffer(index);
+                buffer.clear();
+                int size = mSource.read(buffer);
+                if (size == STOP) {
+                    finish(null);
+                } else if (size == END_OF_STREAM) {
+                    mInputDone = true;
+                    mCodec.queueInputBuffer(index, 0, 0, FLAG_END_OF_STREAM);
+                } else {
+                    mCodec.queueInputBuffer(index, size, mSource.getPresentationTimeUs(), 0);
+                }
+            } catch (Throwable e) {
+                finish(e);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(
+                int index, int offset, int size, long presentationTimeUs, int flags) {
+            if (isDone()) {
+                return;
+            }
+            try {
+                boolean keepGoing = true;
+                if (size > 0) {
+                    ByteBuffer output = mCodec.getOutputBuffer(index);
+                    output.limit(offset + size);
+                    output.position(offset);
+                    keepGoing = mSink.write(output, presentationTimeUs, flags);
+                    output.clear();
+                }
+                mCodec.releaseOutputBuffer(index);
+                if (!keepGoing || (flags & FLAG_END_OF_STREAM) != 0) {
+                    finish(null);
+                }
+            } catch (Throwable e) {
+                finish(e);
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            finish(new IOException("Codec failed", e));
+        }
+
+        private synchronized boolean isDone() {
+            return mDone;
+        }
+
+        private synchronized void finish(Throwable error) {
+            if (!mDone) {
+                mDone = true;
+                mError = error;
+                notifyAll();
+            }
+        }
+
+        synchronized void await() throws IOException {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while the codec was running");
+                }
+            }
+            if (mError instanceof IOException) {
+                throw (IOException) mError;
+            }
+            if (mError instanceof RuntimeException) {
+                throw (RuntimeException) mError;
+            }
+            if (mError instanceof Error) {
+                throw (Error) mError;
+            }
+            if (mError != null) {
+                throw new IOException(mError);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Computes the SoundFile frame gains incrementally from interleaved 16 bit PCM.
+ * <p>
+ * A frame gain is sqrt(max over the frame of the channel-averaged absolute sample value), which
+ * is what SoundFile used to compute in one pass over the fully decoded stream. Feeding the PCM
+ * chunk by chunk gives the exact same values without ever holding the whole stream.
+ */
+public class FrameGainAccumulator {
+    private static final int CHUNK_SAMPLES = 4096;  // samples per channel read in one bulk get.
+    private static final int MIN_FRAMES_PER_TASK = 256;
+
+    private final int mChannels;
+    private final int mSamplesPerFrame;
+    private final short[] mChunk;
+
+    private int[] mGains;
+    private int mNumFrames;
+    private int mFrameGain;       // max value found so far in the current (partial) frame.
+    private int mSamplesInFrame;  // samples per channel already accumulated in the current frame.
+
+    public FrameGainAccumulator(int channels, int samplesPerFrame, int expectedNumFrames) {
+        mChannels = channels;
+        mSamplesPerFrame = samplesPerFrame;
+        mChunk = new short[CHUNK_SAMPLES * channels];
+        mGains = new int[Math.max(expectedNumFrames, 16)];
+        mNumFrames = 0;
+        mFrameGain = -1;
+        mSamplesInFrame = 0;
+    }
+
+    // Consumes all the remaining samples of the given buffer.
+    // The buffer must only contain whole samples (i.e. a multiple of the number of channels).
+    public void add(ShortBuffer samples) {
+        while (samples.remaining() > 0) {
+            int length = Math.min(samples.remaining(), mChunk.length);
+            samples.get(mChunk, 0, length);
+            add(mChunk, length);
+        }
+    }
+
+    public void add(short[] samples, int length) {
+        for (int i = 0; i + mChannels <= length; i += mChannels) {
+            int value = 0;
+            for (int k = 0; k < mChannels; k++) {
+                value += Math.abs(samples[i + k]);
+            }
+            value /= mChannels;
+            if (mFrameGain < value) {
+                mFrameGain = value;
+            }
+            if (++mSamplesInFrame == mSamplesPerFrame) {
+                endFrame();
+            }
+        }
+    }
+
+    /**
+     * Computes the gains of all the remaining samples of the given buffer, without consuming them.
+     * The frames are split between the cores (see ParallelChunks), the gains are the same as the
+     * ones add() and finish() would give.
+     */
+    public static int[] computeGains(final ShortBuffer samples, final int channels,
+                                     final int samplesPerFrame) {
+        final int start = samples.position();
+        final int end = samples.limit();
+        int numSamples = (end - start) / channels;  // per channel.
+        int numFrames = (numSamples + samplesPerFrame - 1) / samplesPerFrame;
+        final int[] gains = new int[numFrames];
+
+        ParallelChunks.run(numFrames, MIN_FRAMES_PER_TASK, new ParallelChunks.Task() {
+            @Override
+            public void run(int index, int fromFrame, int toFrame) {
+                ShortBuffer chunk = samples.duplicate();
+                long chunkEnd = start + (long) toFrame * samplesPerFrame * channels;
+                chunk.limit((int) Math.min(end, chunkEnd));
+                chunk.position(start + fromFrame * samplesPerFrame * channels);
+                FrameGainAccumulator accumulator =
+                        new FrameGainAccumulator(channels, samplesPerFrame, toFrame - fromFrame);
+                accumulator.add(chunk);
+                int[] chunkGains = accumulator.finish();
+                System.arraycopy(chunkGains, 0, gains, fromFrame, chunkGains.length);
+            }
+        });
+        return gains;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Returns a copy of the gains of the frames completed so far.
+    public int[] getGains() {
+        int[] gains = new int[mNumFrames];
+        System.arraycopy(mGains, 0, gains, 0, mNumFrames);
+        return gains;
+    }
+
+    // Flushes the last partial frame, if any, and returns the gains of all the frames.
+    public int[] finish() {
+        if (mSamplesInFrame > 0) {
+            endFrame();
+        }
+        if (mGains.length != mNumFrames) {
+            int[] gains = new int[mNumFrames];
+            System.arraycopy(mGains, 0, gains, 0, mNumFrames);
+            mGains = gains;
+        }
+        return mGains;
+    }
+
+    private void endFrame() {
+        if (mNumFrames == mGains.length) {
+            int[] gains = new int[mGains.length + mGains.length / 2];
+            System.arraycopy(mGains, 0, gains, 0, mNumFrames);
+            mGains = gains;
+        }
+        mGains[mNumFrames++] = (int) Math.sqrt(mFrameGain);  // here gain = sqrt(max value)...
+        mFrameGain = -1;
+        mSamplesInFrame = 0;
+    }
+}
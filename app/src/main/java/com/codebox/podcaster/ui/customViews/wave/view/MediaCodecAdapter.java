@@ -0,0 +1,170 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Drives a MediaCodec for CodecPipeline.
+ * <p>
+ * From Marshmallow on, the codec runs in asynchronous mode: MediaCodec.setCallback() on a thread
+ * of its own. Before, the same callbacks are called by a thread polling dequeueInputBuffer() and
+ * dequeueOutputBuffer(), with the buffer arrays of getInputBuffers() and getOutputBuffers().
+ */
+class MediaCodecAdapter implements CodecPipeline.Codec {
+    private static final long TIMEOUT_US = 10000;
+
+    private final MediaCodec mCodec;
+    private final MediaFormat mFormat;
+    private final int mConfigureFlags;
+    private HandlerThread mCallbackThread;  // asynchronous mode.
+    private Thread mPollingThread;          // synchronous mode.
+    private volatile boolean mReleased;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    // codec must not be configured yet: the pipeline configures and starts it.
+    MediaCodecAdapter(MediaCodec codec, MediaFormat format, int configureFlags) {
+        mCodec = codec;
+        mFormat = format;
+        mConfigureFlags = configureFlags;
+    }
+
+    @Override
+    public void start(final CodecPipeline.Callback callback) throws IOException {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                startAsync(callback);
+            } else {
+                startSync(callback);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Could not start the codec", e);
+        }
+    }
+
+    private void startAsync(final CodecPipeline.Callback callback) {
+        mCallbackThread = new HandlerThread("MediaCodecAdapter");
+        mCallbackThread.start();
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                if (!mReleased) {
+                    callback.onInputBufferAvailable(index);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(
+                    MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                if (!mReleased) {
+                    callback.onOutputBufferAvailable(
+                            index, info.offset, info.size, info.presentationTimeUs, info.flags);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                if (!mReleased) {
+                    callback.onError(e);
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                // Subsequent data will conform to new format.
+            }
+        }, new Handler(mCallbackThread.getLooper()));
+        mCodec.configure(mFormat, null, null, mConfigureFlags);
+        mCodec.start();
+    }
+
+    private void startSync(final CodecPipeline.Callback callback) {
+        mCodec.configure(mFormat, null, null, mConfigureFlags);
+        mCodec.start();
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        mPollingThread = new Thread("MediaCodecAdapter") {
+            public void run() {
+                poll(callback);
+            }
+        };
+        mPollingThread.start();
+    }
+
+    private void poll(CodecPipeline.Callback callback) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (!mReleased) {
+                int inputBufferIndex = mCodec.dequeueInputBuffer(0);
+                if (inputBufferIndex >= 0) {
+                    callback.onInputBufferAvailable(inputBufferIndex);
+                }
+                // Only wait for the output: the input is either queued or the codec is full.
+                int outputBufferIndex = mCodec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outputBufferIndex >= 0) {
+                    callback.onOutputBufferAvailable(outputBufferIndex,
+                            info.offset, info.size, info.presentationTimeUs, info.flags);
+                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    mOutputBuffers = mCodec.getOutputBuffers();
+                }
+            }
+        } catch (IllegalStateException e) {
+            if (!mReleased) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (mInputBuffers != null) {
+            return mInputBuffers[index];
+        }
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (mOutputBuffers != null) {
+            return mOutputBuffers[index];
+        }
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        if (mPollingThread != null) {
+            try {
+                mPollingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            // Not started, or already in an error state.
+        }
+        mCodec.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+        }
+    }
+}
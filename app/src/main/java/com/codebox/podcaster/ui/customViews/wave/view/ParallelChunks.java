@@ -0,0 +1,94 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a CPU bound loop over [0, length) split in contiguous chunks, one per core.
+ * <p>
+ * The chunks run on a pool shared by the whole app and on the calling thread, which returns once
+ * they are all done. Loops shorter than twice minChunkLength run on the calling thread only, so
+ * short files do not pay for the hand-off.
+ */
+final class ParallelChunks {
+    private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    interface Task {
+        // Processes [from, to). Called concurrently for different chunks.
+        void run(int index, int from, int to);
+    }
+
+    private ParallelChunks() {
+    }
+
+    /**
+     * @return the number of chunks the loop will be split in, to size per chunk results.
+     */
+    static int numChunks(int length, int minChunkLength) {
+        return Math.max(1, Math.min(NUM_CORES, length / Math.max(minChunkLength, 1)));
+    }
+
+    static void run(int length, int minChunkLength, final Task task) {
+        int numChunks = numChunks(length, minChunkLength);
+        if (numChunks == 1) {
+            task.run(0, 0, length);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>(numChunks - 1);
+        ExecutorService executor = getExecutor();
+        for (int i = 1; i < numChunks; i++) {
+            final int index = i;
+            final int from = (int) ((long) length * i / numChunks);
+            final int to = (int) ((long) length * (i + 1) / numChunks);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(index, from, to);
+                }
+            }));
+        }
+        task.run(0, 0, (int) ((long) length / numChunks));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            // The calling thread runs a chunk too.
+            sExecutor = Executors.newFixedThreadPool(Math.max(NUM_CORES - 1, 1),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ParallelChunks");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,39 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 16 bits interleaved PCM that SamplePlayer can play from any position, either already decoded
+ * in memory (see SoundFile.getDecodedBytes()) or decoded on demand (see WindowedPcmDecoder).
+ * <p>
+ * Positions are in samples per channel. A source is only used by one thread at a time.
+ */
+public interface PcmSource {
+    int getSampleRate();
+
+    int getChannels();
+
+    // Number of samples per channel. Only an estimate for sources decoding on demand.
+    int getNumSamples();
+
+    // The next read() starts at the given sample.
+    void seek(int sample);
+
+    /**
+     * Reads at most length shorts, a multiple of the number of channels.
+     *
+     * @return the number of shorts read, or -1 at the end of the audio.
+     */
+    int read(short[] buffer, int offset, int length);
+
+    /**
+     * Reads at most maxBytes of little endian samples, a multiple of the frame size, without
+     * copying them when the source can.
+     *
+     * @return the bytes between position() and limit(), only valid until the next call, or null
+     * at the end of the audio.
+     */
+    ByteBuffer readBytes(int maxBytes);
+
+    void close();
+}
@@ -0,0 +1,213 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Cache file holding the decoded PCM of a sound file, so that SoundFile can expose its samples
+ * through a MappedByteBuffer instead of a Java heap buffer.
+ * <p>
+ * The file is a 32 bytes header (big endian ints: magic, version, sample rate, channels, number
+ * of samples per channel, average bit rate, 2 reserved) followed by the 16 bits little-endian
+ * interleaved samples. While decoding, the PCM is written to a temporary file which is only
+ * renamed once the header is complete, so a cancelled or interrupted decode is never reused.
+ * <p>
+ * A SoundFile deletes its cache file when released. The files of SoundFiles which never were
+ * (e.g. the process died) are evicted, least recently used first, once they take more than
+ * MAX_CACHE_SIZE.
+ */
+class PcmSpillFile {
+    private static final int MAGIC = 0x50434D31;  // "PCM1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final String PREFIX = "pcm_";
+    private static final String EXTENSION = ".pcm";
+    private static final String TMP_EXTENSION = ".tmp";
+    // About 50 minutes of mono 44.1 kHz audio.
+    private static final long MAX_CACHE_SIZE = 256L * 1024 * 1024;
+
+    // Metadata and samples of a complete spill file.
+    static class Mapping {
+        final int sampleRate;
+        final int channels;
+        final int numSamples;  // per channel.
+        final int avgBitRate;
+        final MappedByteBuffer pcm;  // little-endian, positioned on the first sample.
+
+        private Mapping(int sampleRate, int channels, int numSamples, int avgBitRate,
+                        MappedByteBuffer pcm) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.numSamples = numSamples;
+            this.avgBitRate = avgBitRate;
+            this.pcm = pcm;
+        }
+    }
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+
+    private PcmSpillFile(File file) throws IOException {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + TMP_EXTENSION);
+        mRandomAccessFile = new RandomAccessFile(mTmpFile, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mChannel.position(HEADER_SIZE);
+    }
+
+    // Return the cache file of inputFile in cacheDir. The name depends on the path, the size and
+    // the modification time of inputFile, so an edited file never maps a stale cache.
+    static File getCacheFile(File cacheDir, File inputFile) {
+        return new File(cacheDir, getPrefix(inputFile) + inputFile.length() + "_"
+                + inputFile.lastModified() + EXTENSION);
+    }
+
+    // Start writing the cache file of inputFile. Stale cache files of the same input are removed,
+    // and the least recently used ones of other inputs if there are too many.
+    static PcmSpillFile create(File cacheDir, File inputFile) throws IOException {
+        File file = getCacheFile(cacheDir, inputFile);
+        String prefix = getPrefix(inputFile);
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(prefix) && !f.equals(file)) {
+                    f.delete();
+                }
+            }
+        }
+        evict(cacheDir);
+        return new PcmSpillFile(file);
+    }
+
+    // Delete the least recently used complete cache files until the others fit in
+    // MAX_CACHE_SIZE. A file still mapped stays readable until it is unmapped.
+    private static void evict(File cacheDir) {
+        File[] files = cacheDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith(PREFIX) && f.getName().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        // Most recently used first, see open().
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+            if (size > MAX_CACHE_SIZE) {
+                f.delete();
+            }
+        }
+    }
+
+    // Map a complete cache file. Return null if it does not exist or is not valid.
+    static Mapping open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return null;
+                }
+            }
+            header.rewind();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            int sampleRate = header.getInt();
+            int channels = header.getInt();
+            int numSamples = header.getInt();
+            int avgBitRate = header.getInt();
+            long size = (long) numSamples * channels * 2;
+            if (channels <= 0 || numSamples < 0 || HEADER_SIZE + size > channel.size()) {
+                return null;
+            }
+            MappedByteBuffer pcm = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+            pcm.order(ByteOrder.LITTLE_ENDIAN);
+            // The modification time orders the files for evict().
+            file.setLastModified(System.currentTimeMillis());
+            return new Mapping(sampleRate, channels, numSamples, avgBitRate, pcm);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(randomAccessFile);  // the mapping stays valid after the channel is closed.
+        }
+    }
+
+    // Append all the remaining bytes of pcm to the file.
+    void append(ByteBuffer pcm) throws IOException {
+        while (pcm.hasRemaining()) {
+            mChannel.write(pcm);
+        }
+    }
+
+    // Write the header, publish the file and map it.
+    Mapping commit(int sampleRate, int channels, int numSamples, int avgBitRate)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(sampleRate);
+        header.putInt(channels);
+        header.putInt(numSamples);
+        header.putInt(avgBitRate);
+        header.rewind();
+        while (header.hasRemaining()) {
+            mChannel.write(header, header.position());
+        }
+        close(mRandomAccessFile);
+        if (!mTmpFile.renameTo(mFile)) {
+            mTmpFile.delete();
+            throw new IOException("Failed to create " + mFile);
+        }
+        Mapping mapping = open(mFile);
+        if (mapping == null) {
+            throw new IOException("Failed to map " + mFile);
+        }
+        return mapping;
+    }
+
+    // Discard the partially written file.
+    void abort() {
+        close(mRandomAccessFile);
+        mTmpFile.delete();
+    }
+
+    private static String getPrefix(File inputFile) {
+        return PREFIX + Integer.toHexString(inputFile.getAbsolutePath().hashCode()) + "_";
+    }
+
+    private static void close(RandomAccessFile randomAccessFile) {
+        if (randomAccessFile == null) {
+            return;
+        }
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            // Nothing else to do here.
+        }
+    }
+}
@@ -18,48 +18,84 @@ package com.codebox.podcaster.ui.customViews.wave.view;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 
+/**
+ * Plays a PcmSource through a streaming AudioTrack.
+ * <p>
+ * One audio thread lives as long as the player and feeds the track in WRITE_MS chunks, so that
+ * start() only has to wake it up. From Lollipop on, the chunks are written with
+ * AudioTrack.write(ByteBuffer) straight from the source's buffers, without copying them. The time
+ * from start() until its first frame is played (see AudioTrack.getTimestamp()) and the number of
+ * underruns are kept for diagnostics.
+ */
 class SamplePlayer {
+    private static final int WRITE_MS = 20;  // audio written per AudioTrack.write().
+    private static final int BUFFER_MS = 100;
+
     public interface OnCompletionListener {
         public void onCompletion();
     };
 
-    private ShortBuffer mSamples;
+    private PcmSource mSource;
     private int mSampleRate;
     private int mChannels;
     private int mNumSamples;  // Number of samples per channel.
     private AudioTrack mAudioTrack;
-    private short[] mBuffer;
+    private short[] mBuffer;  // chunk written before Lollipop.
+    private int mWriteBytes;
+    private ByteBuffer mSilence;  // written after the last chunk so that it gets played.
     private int mPlaybackStart;  // Start offset, in samples.
     private Thread mPlayThread;
-    private boolean mKeepPlaying;
     private OnCompletionListener mListener;
 
-    public SamplePlayer(ShortBuffer samples, int sampleRate, int channels, int numSamples) {
-        mSamples = samples;
-        mSampleRate = sampleRate;
-        mChannels = channels;
-        mNumSamples = numSamples;
+    // State shared with the play thread.
+    private final Object mLock = new Object();
+    private boolean mPlayRequested;  // the thread should feed the track.
+    private boolean mSeekRequested;  // the source must first be moved to mPlaybackStart.
+    private boolean mWriting;        // the thread is in AudioTrack.write().
+    private boolean mReleased;
+    private long mStartRequestNanos;  // 0 once the first frame after start() was played.
+    private long mStartFramePosition;  // first frame played after start(), in track frames.
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    private volatile long mStartLatencyMs;
+
+    public SamplePlayer(SoundFile sf) {
+        this(new DecodedSource(sf.getDecodedBytes(), sf.getSampleRate(), sf.getChannels(),
+                sf.getNumSamples()));
+    }
+
+    // The player closes source when released.
+    public SamplePlayer(PcmSource source) {
+        mSource = source;
+        mSampleRate = source.getSampleRate();
+        mChannels = source.getChannels();
+        mNumSamples = source.getNumSamples();
         mPlaybackStart = 0;
 
+        int frameBytes = mChannels * 2;
+        mWriteBytes = mSampleRate * WRITE_MS / 1000 * frameBytes;
         int bufferSize = AudioTrack.getMinBufferSize(
                 mSampleRate,
                 mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
                 AudioFormat.ENCODING_PCM_16BIT);
-        // make sure minBufferSize can contain at least 1 second of audio (16 bits sample).
-        if (bufferSize < mChannels * mSampleRate * 2) {
-            bufferSize = mChannels * mSampleRate * 2;
-        }
-        mBuffer = new short[bufferSize/2]; // bufferSize is in Bytes.
+        // A short buffer keeps start and seek latencies low, while leaving the decoder room.
+        bufferSize = Math.max(bufferSize, mSampleRate * BUFFER_MS / 1000 * frameBytes);
+        mBuffer = new short[mWriteBytes / 2];
+        mSilence = ByteBuffer.allocateDirect(bufferSize);
         mAudioTrack = new AudioTrack(
                 AudioManager.STREAM_MUSIC,
                 mSampleRate,
                 mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
                 AudioFormat.ENCODING_PCM_16BIT,
-                mBuffer.length * 2,
+                bufferSize,
                 AudioTrack.MODE_STREAM);
         // Check when player played all the given data and notify user if mListener is set.
         mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1);  // Set the marker to the end.
@@ -76,13 +112,16 @@ class SamplePlayer {
                 }
             }
         });
-        mPlayThread = null;
-        mKeepPlaying = true;
         mListener = null;
-    }
+        mStartLatencyMs = -1;
+        mSeekRequested = true;
 
-    public SamplePlayer(SoundFile sf) {
-        this(sf.getSamples(), sf.getSampleRate(), sf.getChannels(), sf.getNumSamples());
+        mPlayThread = new Thread("SamplePlayer") {
+            public void run() {
+                play();
+            }
+        };
+        mPlayThread.start();
     }
 
     public void setOnCompletionListener(OnCompletionListener listener) {
@@ -101,32 +140,14 @@ class SamplePlayer {
         if (isPlaying()) {
             return;
         }
-        mKeepPlaying = true;
-        mAudioTrack.flush();
+        synchronized (mLock) {
+            mPlayRequested = true;
+            mStartRequestNanos = System.nanoTime();
+            mStartFramePosition = mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            mLock.notifyAll();
+        }
+        // Resumes right away after a pause(): the audio queued then is still in the track.
         mAudioTrack.play();
-        // Setting thread feeding the audio samples to the audio hardware.
-        // (Assumes mChannels = 1 or 2).
-        mPlayThread = new Thread() {
-            public void run() {
-                int position = mPlaybackStart * mChannels;
-                mSamples.position(position);
-                int limit = mNumSamples * mChannels;
-                while (mSamples.position() < limit && mKeepPlaying) {
-                    int numSamplesLeft = limit - mSamples.position();
-                    if(numSamplesLeft >= mBuffer.length) {
-                        mSamples.get(mBuffer);
-                    } else {
-                        for(int i=numSamplesLeft; i<mBuffer.length; i++) {
-                            mBuffer[i] = 0;
-                        }
-                        mSamples.get(mBuffer, 0, numSamplesLeft);
-                    }
-                    // TODO(nfaralli): use the write method that takes a ByteBuffer as argument.
-                    mAudioTrack.write(mBuffer, 0, mBuffer.length);
-                }
-            }
-        };
-        mPlayThread.start();
     }
 
     public void pause() {
@@ -138,23 +159,31 @@ class SamplePlayer {
 
     public void stop() {
         if (isPlaying() || isPaused()) {
-            mKeepPlaying = false;
+            synchronized (mLock) {
+                mPlayRequested = false;
+            }
             mAudioTrack.pause();  // pause() stops the playback immediately.
             mAudioTrack.stop();   // Unblock mAudioTrack.write() to avoid deadlocks.
-            if (mPlayThread != null) {
-                try {
-                    mPlayThread.join();
-                } catch (InterruptedException e) {
-                }
-                mPlayThread = null;
+            awaitIdleThread();
+            mAudioTrack.flush();
+            synchronized (mLock) {
+                mSeekRequested = true;  // the audio thread had read past what was played.
             }
-            mAudioTrack.flush();  // just in case...
         }
     }
 
     public void release() {
         stop();
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        try {
+            mPlayThread.join();
+        } catch (InterruptedException e) {
+        }
         mAudioTrack.release();
+        mSource.close();
     }
 
     public void seekTo(int msec) {
@@ -164,6 +193,9 @@ class SamplePlayer {
         if (mPlaybackStart > mNumSamples) {
             mPlaybackStart = mNumSamples;  // Nothing to play...
         }
+        synchronized (mLock) {
+            mSeekRequested = true;
+        }
         mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1 - mPlaybackStart);
         if (wasPlaying) {
             start();
@@ -174,4 +206,209 @@ class SamplePlayer {
         return (int)((mPlaybackStart + mAudioTrack.getPlaybackHeadPosition()) *
                 (1000.0 / mSampleRate));
     }
+
+    /**
+     * @return the time from the last start() until its first frame was played, or -1 if it was
+     * not measured yet.
+     */
+    public long getStartLatencyMs() {
+        return mStartLatencyMs;
+    }
+
+    /**
+     * @return the number of times the track ran out of audio since the player was created, or -1
+     * if the platform does not report it (before Nougat).
+     */
+    public int getUnderrunCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return mAudioTrack.getUnderrunCount();
+        }
+        return -1;
+    }
+
+    private void awaitIdleThread() {
+        synchronized (mLock) {
+            while (mWriting) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean isPlayRequested() {
+        synchronized (mLock) {
+            return mPlayRequested;
+        }
+    }
+
+    // Body of the audio thread.
+    private void play() {
+        int numWritten = 0;  // samples per channel since the last seek.
+        while (true) {
+            synchronized (mLock) {
+                while (!mPlayRequested && !mReleased) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mReleased) {
+                    return;
+                }
+                if (mSeekRequested) {
+                    mSource.seek(mPlaybackStart);
+                    mSeekRequested = false;
+                    numWritten = 0;
+                }
+                mWriting = true;
+            }
+
+            int numBytes = write();
+            boolean ended = numBytes < 0;
+            if (ended) {
+                // The number of samples of a source decoding on demand is an estimate: complete
+                // as soon as what was written is played.
+                if (numWritten > 0 && mPlaybackStart + numWritten < mNumSamples) {
+                    mAudioTrack.setNotificationMarkerPosition(numWritten - 1);
+                }
+                if (isPlayRequested()) {
+                    writeSilence();
+                }
+            } else {
+                numWritten += numBytes / (mChannels * 2);
+            }
+
+            synchronized (mLock) {
+                mWriting = false;
+                if (ended) {
+                    mPlayRequested = false;
+                }
+                if (mStartRequestNanos != 0 && !ended) {
+                    measureStartLatency();
+                }
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    // Sets mStartLatencyMs once the track reports a timestamp past the first frame played after
+    // start(). The timestamp is only available a little after playback started, the next chunks
+    // try again. Called with mLock held.
+    private void measureStartLatency() {
+        if (!mAudioTrack.getTimestamp(mTimestamp)
+                || mTimestamp.framePosition <= mStartFramePosition) {
+            return;
+        }
+        long playedNanos = (mTimestamp.framePosition - mStartFramePosition) * 1000000000L
+                / mSampleRate;
+        mStartLatencyMs =
+                (mTimestamp.nanoTime - playedNanos - mStartRequestNanos) / 1000000;
+        mStartRequestNanos = 0;
+    }
+
+    // Writes the next chunk of the source. Returns the number of bytes written, -1 at the end.
+    private int write() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            ByteBuffer pcm = mSource.readBytes(mWriteBytes);
+            if (pcm == null) {
+                return -1;
+            }
+            int numBytes = pcm.remaining();
+            mAudioTrack.write(pcm, numBytes, AudioTrack.WRITE_BLOCKING);
+            return numBytes;
+        }
+        int numRead = mSource.read(mBuffer, 0, mBuffer.length);
+        if (numRead <= 0) {
+            return -1;
+        }
+        mAudioTrack.write(mBuffer, 0, numRead);
+        return numRead * 2;
+    }
+
+    // Fills the track's buffer after the last chunk, older tracks only start playing when full.
+    private void writeSilence() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mSilence.clear();
+            mAudioTrack.write(mSilence, mSilence.remaining(), AudioTrack.WRITE_BLOCKING);
+        } else {
+            short[] silence = new short[mSilence.capacity() / 2];
+            mAudioTrack.write(silence, 0, silence.length);
+        }
+    }
+
+    // The samples of a SoundFile, already decoded in memory.
+    private static class DecodedSource implements PcmSource {
+        private final ByteBuffer mBytes;
+        private final ShortBuffer mSamples;
+        private final int mSampleRate;
+        private final int mChannels;
+        private final int mNumSamples;
+        private final int mLimit;  // in bytes.
+
+        DecodedSource(ByteBuffer bytes, int sampleRate, int channels, int numSamples) {
+            mBytes = bytes;
+            mSamples = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mNumSamples = numSamples;
+            mLimit = Math.min(numSamples * channels * 2, bytes.capacity());
+        }
+
+        @Override
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        @Override
+        public int getChannels() {
+            return mChannels;
+        }
+
+        @Override
+        public int getNumSamples() {
+            return mNumSamples;
+        }
+
+        @Override
+        public void seek(int sample) {
+            mBytes.limit(mBytes.capacity());
+            mBytes.position(Math.min(sample * mChannels * 2, mLimit));
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            int count = Math.min(length, (mLimit - mBytes.position()) / 2);
+            if (count <= 0) {
+                return -1;
+            }
+            mSamples.position(mBytes.position() / 2);
+            mSamples.get(buffer, offset, count);
+            mBytes.position(mBytes.position() + count * 2);
+            return count;
+        }
+
+        @Override
+        public ByteBuffer readBytes(int maxBytes) {
+            int start = mBytes.position();
+            int count = Math.min(maxBytes, mLimit - start);
+            if (count <= 0) {
+                return null;
+            }
+            // A window on the decoded bytes, valid until the next call.
+            mBytes.limit(start + count);
+            ByteBuffer pcm = mBytes.slice();
+            mBytes.limit(mBytes.capacity());
+            mBytes.position(start + count);
+            return pcm;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -26,8 +26,15 @@ import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
+import com.codebox.podcaster.util.adts.AdtsFiles;
+import com.codebox.podcaster.util.adts.AdtsFrameIndex;
+import com.codebox.podcaster.util.adts.AdtsHeader;
+import com.codebox.podcaster.util.adts.AdtsStreamInfo;
+import com.codebox.podcaster.util.mp4.M4aStreamWriter;
+
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -36,11 +43,20 @@ import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 public class SoundFile {
+    // Minimum time between two PeaksListener calls.
+    private static final long PEAKS_INTERVAL_MS = 250;
+    // Each PeaksListener call has at least this many times the frames of the previous one: the
+    // waveform is rebuilt from all the frames every time, this keeps the total work linear.
+    private static final double PEAKS_GROWTH = 1.25;
+
     private ProgressListener mProgressListener = null;
+    private PeaksListener mPeaksListener = null;
     private File mInputFile = null;
+    private File mSpillFile = null;  // PcmSpillFile of the decoded samples, see release().
 
     // Member variables representing frame data
     private String mFileType;
@@ -72,6 +88,28 @@ public class SoundFile {
         boolean reportProgress(double fractionComplete);
     }
 
+    // Listener of the peaks of the part of the file decoded so far.
+    public interface PeaksListener {
+        /**
+         * Called by the SoundFile class while decoding, at most every PEAKS_INTERVAL_MS and once
+         * PEAKS_GROWTH times more frames were decoded, with the peaks of all the frames decoded
+         * so far and the number of frames the whole file is expected to have. Not called if the
+         * file was already decoded.
+         */
+        void onPeaks(WaveformPeaks peaks, int expectedNumFrames);
+    }
+
+    // Consumer of the decoded PCM, used by the streaming decode mode.
+    public interface PcmConsumer {
+        /**
+         * Called by the SoundFile class for each chunk of decoded audio. pcm contains 16 bits
+         * little-endian interleaved samples (same layout as getSamples()) between its position
+         * and its limit, and is only valid until this method returns.
+         * Return true to keep decoding, and false to stop here.
+         */
+        boolean onPcm(ByteBuffer pcm);
+    }
+
     // Custom exception for invalid inputs.
     public class InvalidInputException extends Exception {
         // Serial version ID generated by Eclipse.
@@ -97,11 +135,108 @@ public class SoundFile {
     }
 
     // Create and return a SoundFile object using the file fileName.
+    // The decoded samples are cached in the default temporary directory (the app cache directory
+    // on Android).
+    public static SoundFile create(String fileName,
+                                   ProgressListener progressListener)
+        throws java.io.FileNotFoundException,
+               IOException, InvalidInputException {
+        return create(fileName, new File(System.getProperty("java.io.tmpdir")), progressListener);
+    }
+
+    // Create and return a SoundFile object using the file fileName.
+    // The decoded samples are spilled to a file in cacheDir and memory mapped, so they do not
+    // live on the Java heap. If the file was already decoded, the cached samples are used.
     public static SoundFile create(String fileName,
+                                   File cacheDir,
                                    ProgressListener progressListener)
         throws java.io.FileNotFoundException,
                IOException, InvalidInputException {
-        // First check that the file exists and that its extension is supported.
+        return create(fileName, cacheDir, progressListener, null);
+    }
+
+    // Same as above, peaksListener (which can be null) being given the peaks of the audio as it
+    // is decoded, so that its waveform can be shown before the decoding is complete.
+    public static SoundFile create(String fileName,
+                                   File cacheDir,
+                                   ProgressListener progressListener,
+                                   PeaksListener peaksListener)
+        throws java.io.FileNotFoundException,
+               IOException, InvalidInputException {
+        File f = checkInputFile(fileName);
+        if (f == null) {
+            return null;
+        }
+        SoundFile soundFile = new SoundFile();
+        soundFile.setProgressListener(progressListener);
+        soundFile.mPeaksListener = peaksListener;
+        soundFile.ReadFile(f, cacheDir);
+        return soundFile;
+    }
+
+    // Create and return a SoundFile object by decoding fileName chunk by chunk. The decoded PCM is
+    // handed to pcmConsumer (which can be null) and never kept in memory, so the memory used does
+    // not depend on the length of the file. Only the frame gains and the stream metadata are
+    // available on the returned object: getSamples() returns null and it cannot be written.
+    public static SoundFile stream(String fileName,
+                                   ProgressListener progressListener,
+                                   PcmConsumer pcmConsumer)
+        throws java.io.FileNotFoundException,
+               IOException, InvalidInputException {
+        File f = checkInputFile(fileName);
+        if (f == null) {
+            return null;
+        }
+        SoundFile soundFile = new SoundFile();
+        soundFile.setProgressListener(progressListener);
+        if (!soundFile.DecodeFile(f, pcmConsumer)) {
+            return null;
+        }
+        return soundFile;
+    }
+
+    // Open fileName for playback without decoding it first: the returned PcmSource decodes the
+    // audio around the position being played only (see WindowedPcmDecoder), so playback starts at
+    // once anywhere in the file, with a memory use which does not depend on its length.
+    // Return null if the extension is not supported.
+    public static PcmSource openWindowed(String fileName)
+        throws java.io.FileNotFoundException, IOException {
+        File f = checkInputFile(fileName);
+        if (f == null) {
+            return null;
+        }
+        AdtsFrameIndex index = getAdtsFrameIndex(f);
+        if (index != null) {
+            return WindowedPcmDecoder.openAdts(f, index);
+        }
+        return WindowedPcmDecoder.open(f);
+    }
+
+    // Return the frame index of f if it is an ADTS stream of AAC LC frames of one raw data block
+    // each (as recorded segments are), null otherwise. The index is read from, or saved to, its
+    // file next to f.
+    private static AdtsFrameIndex getAdtsFrameIndex(File f) {
+        if (!f.getName().toLowerCase().endsWith(".aac")) {
+            return null;
+        }
+        AdtsFrameIndex index;
+        try {
+            index = AdtsFrameIndex.forFile(f);
+        } catch (IOException e) {
+            return null;
+        }
+        AdtsStreamInfo info = index.getInfo();
+        if (index.isEmpty() || info.getAudioObjectType() != AdtsHeader.AAC_LC ||
+                info.getSampleCount() !=
+                        (long) index.getFrameCount() * AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK) {
+            return null;
+        }
+        return index;
+    }
+
+    // Check that the file exists and that its extension is supported.
+    // Return null if the extension is not supported.
+    private static File checkInputFile(String fileName) throws java.io.FileNotFoundException {
         File f = new File(fileName);
         if (!f.exists()) {
             throw new java.io.FileNotFoundException(fileName);
@@ -114,10 +249,7 @@ public class SoundFile {
         if (!Arrays.asList(getSupportedExtensions()).contains(components[components.length - 1])) {
             return null;
         }
-        SoundFile soundFile = new SoundFile();
-        soundFile.setProgressListener(progressListener);
-        soundFile.ReadFile(f);
-        return soundFile;
+        return f;
     }
 
     // Create and return a SoundFile object by recording a mono audio stream.
@@ -186,6 +318,28 @@ public class SoundFile {
         }
     }
 
+    // The decoded samples as little endian bytes, for SamplePlayer. Null like getSamples().
+    ByteBuffer getDecodedBytes() {
+        if (mDecodedBytes == null) {
+            return null;
+        }
+        ByteBuffer bytes = mDecodedBytes.duplicate();
+        bytes.clear();
+        return bytes;
+    }
+
+    // Delete the cache file of the decoded samples, which is as large as the whole decoded audio.
+    // The samples cannot be read from this object afterwards, a SamplePlayer created before keeps
+    // playing them: the mapping outlives the file.
+    public void release() {
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+        mDecodedBytes = null;
+        mDecodedSamples = null;
+    }
+
     // A SoundFile object should only be created using the static methods create() and record().
     private SoundFile() {
     }
@@ -194,17 +348,86 @@ public class SoundFile {
         mProgressListener = progressListener;
     }
 
-    private void ReadFile(File inputFile)
+    private void ReadFile(File inputFile, File cacheDir)
         throws java.io.FileNotFoundException,
                IOException, InvalidInputException {
-        MediaExtractor extractor = new MediaExtractor();
-        MediaFormat format = null;
-        int i;
+        File cacheFile = PcmSpillFile.getCacheFile(cacheDir, inputFile);
+        PcmSpillFile.Mapping mapping = PcmSpillFile.open(cacheFile);
+        if (mapping != null) {
+            // Already decoded: no need to run the decoder again.
+            mSpillFile = cacheFile;
+            setInputFile(inputFile);
+            mSampleRate = mapping.sampleRate;
+            mChannels = mapping.channels;
+            mNumSamples = mapping.numSamples;
+            mAvgBitRate = mapping.avgBitRate;
+            setDecodedBytes(mapping.pcm);
+            mFrameGains = FrameGainAccumulator.computeGains(
+                    mDecodedSamples, mChannels, getSamplesPerFrame());
+            computeFrameOffsets();
+            return;
+        }
 
+        final PcmSpillFile spillFile = PcmSpillFile.create(cacheDir, inputFile);
+        final IOException[] writeError = new IOException[1];
+        PcmConsumer consumer = new PcmConsumer() {
+            @Override
+            public boolean onPcm(ByteBuffer pcm) {
+                try {
+                    spillFile.append(pcm);
+                    return true;
+                } catch (IOException e) {
+                    writeError[0] = e;
+                    return false;
+                }
+            }
+        };
+        boolean completed = false;
+        try {
+            completed = DecodeFile(inputFile, consumer);
+        } finally {
+            if (!completed || writeError[0] != null) {
+                spillFile.abort();
+            }
+        }
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+        if (!completed) {
+            // Decoding was cancelled. The SoundFile object is invalid and should NOT be used.
+            return;
+        }
+        mapping = spillFile.commit(mSampleRate, mChannels, mNumSamples, mAvgBitRate);
+        mSpillFile = cacheFile;
+        setDecodedBytes(mapping.pcm);
+        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
+    }
+
+    private void setInputFile(File inputFile) {
         mInputFile = inputFile;
         String[] components = mInputFile.getPath().split("\\.");
         mFileType = components[components.length - 1];
         mFileSize = (int)mInputFile.length();
+    }
+
+    private void setDecodedBytes(ByteBuffer decodedBytes) {
+        mDecodedBytes = decodedBytes;
+        mDecodedBytes.rewind();
+        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
+        mDecodedSamples = mDecodedBytes.asShortBuffer();
+    }
+
+    // Decode inputFile, handing every decoded chunk to consumer (if not null) and computing the
+    // frame gains on the fly. Return false if the progress listener cancelled the decoding, in
+    // which case the SoundFile object is invalid.
+    private boolean DecodeFile(File inputFile, PcmConsumer consumer)
+        throws java.io.FileNotFoundException,
+               IOException, InvalidInputException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaFormat format = null;
+        int i;
+
+        setInputFile(inputFile);
         extractor.setDataSource(mInputFile.getPath());
         int numTracks = extractor.getTrackCount();
         // find and select the first audio track present in the file.
@@ -223,179 +446,150 @@ public class SoundFile {
         // Expected total number of samples per channel.
         int expectedNumSamples =
             (int)((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f) * mSampleRate + 0.5f);
+        int expectedNumFrames = expectedNumSamples / getSamplesPerFrame() + 1;
+        FrameGainAccumulator gains = new FrameGainAccumulator(
+                mChannels, getSamplesPerFrame(), expectedNumFrames);
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        DecodeStages stages = new DecodeStages(extractor, mimeType.equals("audio/mp4a-latm"),
+                consumer, gains, expectedNumSamples, expectedNumFrames);
+
+        MediaCodec codec = MediaCodec.createDecoderByType(mimeType);
+        try {
+            CodecPipeline.run(new MediaCodecAdapter(codec, format, 0), stages, stages);
+        } finally {
+            extractor.release();
+        }
+        if (stages.mCancelled) {
+            // The SoundFile object is invalid and should NOT be used afterward!
+            return false;
+        }
+        mNumSamples = stages.mNumDecodedSamples;
+        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
 
-        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
-        codec.configure(format, null, null, 0);
-        codec.start();
-
-        int decodedSamplesSize = 0;  // size of the output buffer containing decoded samples.
-        byte[] decodedSamples = null;
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        int sample_size;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        long presentation_time;
-        int tot_size_read = 0;
-        boolean done_reading = false;
-
-        // Set the size of the decoded samples buffer to 1MB (~6sec of a stereo stream at 44.1kHz).
-        // For longer streams, the buffer size will be increased later on, calculating a rough
-        // estimate of the total size needed to store all the samples in order to resize the buffer
-        // only once.
-        mDecodedBytes = ByteBuffer.allocate(1<<20);
-        Boolean firstSampleData = true;
-        while (true) {
+        mFrameGains = gains.finish();
+        computeFrameOffsets();
+        return true;
+    }
+
+    // The stages of DecodeFile(): from the extractor to the decoder, and from the decoder to the
+    // frame gains, the peaks listener and the consumer. Called on the codec thread.
+    private class DecodeStages implements CodecPipeline.Source, CodecPipeline.Sink {
+        private final MediaExtractor mExtractor;
+        private final boolean mIsAac;
+        private final PcmConsumer mConsumer;
+        private final FrameGainAccumulator mGains;
+        private final int mExpectedNumSamples;
+        private final int mExpectedNumFrames;
+        private boolean mFirstSampleData = true;
+        private long mPresentationTimeUs;
+        private int mTotSizeRead;
+        private long mLastPeaksTime;
+        private int mLastPeaksFrames;
+        volatile int mNumDecodedSamples;  // number of samples per channel decoded so far.
+        volatile boolean mCancelled;
+
+        DecodeStages(MediaExtractor extractor, boolean isAac, PcmConsumer consumer,
+                     FrameGainAccumulator gains, int expectedNumSamples, int expectedNumFrames) {
+            mExtractor = extractor;
+            mIsAac = isAac;
+            mConsumer = consumer;
+            mGains = gains;
+            mExpectedNumSamples = expectedNumSamples;
+            mExpectedNumFrames = expectedNumFrames;
+            mLastPeaksTime = System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
             // read data from file and feed it to the decoder input buffers.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                sample_size = extractor.readSampleData(inputBuffers[inputBufferIndex], 0);
-                if (firstSampleData
-                        && format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")
-                        && sample_size == 2) {
-                    // For some reasons on some devices (e.g. the Samsung S3) you should not
-                    // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
-                    // crash. These two bytes do not contain music data but basic info on the
-                    // stream (e.g. channel configuration and sampling frequency), and skipping them
-                    // seems OK with other devices (MediaCodec has already been configured and
-                    // already knows these parameters).
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                } else if (sample_size < 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    presentation_time = extractor.getSampleTime();
-                    codec.queueInputBuffer(inputBufferIndex, 0, sample_size, presentation_time, 0);
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                    if (mProgressListener != null) {
-                        if (!mProgressListener.reportProgress((float)(tot_size_read) / mFileSize)) {
-                            // We are asked to stop reading the file. Returning immediately. The
-                            // SoundFile object is invalid and should NOT be used afterward!
-                            extractor.release();
-                            extractor = null;
-                            codec.stop();
-                            codec.release();
-                            codec = null;
-                            return;
-                        }
-                    }
+            int sample_size = mExtractor.readSampleData(buffer, 0);
+            if (mFirstSampleData && mIsAac && sample_size == 2) {
+                // For some reasons on some devices (e.g. the Samsung S3) you should not
+                // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
+                // crash. These two bytes do not contain music data but basic info on the
+                // stream (e.g. channel configuration and sampling frequency), and skipping them
+                // seems OK with other devices (MediaCodec has already been configured and
+                // already knows these parameters).
+                mExtractor.advance();
+                mTotSizeRead += sample_size;
+                sample_size = mExtractor.readSampleData(buffer, 0);
+            }
+            mFirstSampleData = false;
+            if (sample_size < 0) {
+                // All samples have been read.
+                return CodecPipeline.END_OF_STREAM;
+            }
+            mPresentationTimeUs = mExtractor.getSampleTime();
+            mExtractor.advance();
+            mTotSizeRead += sample_size;
+            if (mProgressListener != null) {
+                if (!mProgressListener.reportProgress((float)(mTotSizeRead) / mFileSize)) {
+                    // We are asked to stop reading the file.
+                    mCancelled = true;
+                    return CodecPipeline.STOP;
                 }
-                firstSampleData = false;
             }
+            return sample_size;
+        }
 
-            // Get decoded stream from the decoder output buffers.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size;
-                    decodedSamples = new byte[decodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(decodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                // Check if buffer is big enough. Resize it if it's too small.
-                if (mDecodedBytes.remaining() < info.size) {
-                    // Getting a rough estimate of the total size, allocate 20% more, and
-                    // make sure to allocate at least 5MB more than the initial size.
-                    int position = mDecodedBytes.position();
-                    int newSize = (int)((position * (1.0 * mFileSize / tot_size_read)) * 1.2);
-                    if (newSize - position < info.size + 5 * (1<<20)) {
-                        newSize = position + info.size + 5 * (1<<20);
-                    }
-                    ByteBuffer newDecodedBytes = null;
-                    // Try to allocate memory. If we are OOM, try to run the garbage collector.
-                    int retry = 10;
-                    while(retry > 0) {
-                        try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize);
-                            break;
-                        } catch (OutOfMemoryError oome) {
-                            // setting android:largeHeap="true" in <application> seem to help not
-                            // reaching this section.
-                            retry--;
-                        }
-                    }
-                    if (retry == 0) {
-                        // Failed to allocate memory... Stop reading more data and finalize the
-                        // instance with the data decoded so far.
-                        break;
-                    }
-                    //ByteBuffer newDecodedBytes = ByteBuffer.allocate(newSize);
-                    mDecodedBytes.rewind();
-                    newDecodedBytes.put(mDecodedBytes);
-                    mDecodedBytes = newDecodedBytes;
-                    mDecodedBytes.position(position);
+        @Override
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        @Override
+        public boolean write(ByteBuffer output, long presentationTimeUs, int flags) {
+            ByteBuffer pcm = output.slice().order(ByteOrder.LITTLE_ENDIAN);
+            mGains.add(pcm.asShortBuffer());
+            mNumDecodedSamples += pcm.remaining() / (mChannels * 2);
+            if (mPeaksListener != null) {
+                long now = System.nanoTime() / 1000000;
+                int numFrames = mGains.getNumFrames();
+                if (now - mLastPeaksTime >= PEAKS_INTERVAL_MS
+                        && numFrames >= mLastPeaksFrames * PEAKS_GROWTH) {
+                    mPeaksListener.onPeaks(new WaveformPeaks(
+                            mSampleRate, getSamplesPerFrame(), mGains.getGains()),
+                            mExpectedNumFrames);
+                    mLastPeaksTime = now;
+                    mLastPeaksFrames = numFrames;
                 }
-                mDecodedBytes.put(decodedSamples, 0, info.size);
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
             }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (mDecodedBytes.position() / (2 * mChannels)) >= expectedNumSamples) {
-                // We got all the decoded data from the decoder. Stop here.
-                // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
-                // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
-                // won't do that for some files (e.g. with mono AAC files), in which case subsequent
-                // calls to dequeueOutputBuffer may result in the application crashing, without
-                // even an exception being thrown... Hence the second check.
-                // (for mono AAC files, the S3 will actually double each sample, as if the stream
-                // was stereo. The resulting stream is half what it's supposed to be and with a much
-                // lower pitch.)
-                break;
+            if (mConsumer != null && !mConsumer.onPcm(pcm)) {
+                // Stop reading more data and finalize the instance with the data decoded so far.
+                return false;
             }
+            // Theoretically the decoder should flag the end of stream. However some phones
+            // (e.g. Samsung S3) won't do that for some files (e.g. with mono AAC files), in which
+            // case subsequent calls to dequeueOutputBuffer may result in the application
+            // crashing, without even an exception being thrown... Hence this check.
+            // (for mono AAC files, the S3 will actually double each sample, as if the stream
+            // was stereo. The resulting stream is half what it's supposed to be and with a much
+            // lower pitch.)
+            return mNumDecodedSamples < mExpectedNumSamples;
         }
-        mNumSamples = mDecodedBytes.position() / (mChannels * 2);  // One sample = 2 bytes.
-        mDecodedBytes.rewind();
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
-        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
-
-        extractor.release();
-        extractor = null;
-        codec.stop();
-        codec.release();
-        codec = null;
+    }
 
-        // Temporary hack to make it work with the old version.
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
-        }
-        mFrameGains = new int[mNumFrames];
+    // Temporary hack to make it work with the old version.
+    // ADTS input has a frame per 1024 samples, whose actual offsets and lengths are indexed.
+    private void computeFrameOffsets() {
+        mNumFrames = mFrameGains.length;
         mFrameLens = new int[mNumFrames];
         mFrameOffsets = new int[mNumFrames];
-        int j;
-        int gain, value;
+        AdtsFrameIndex index = mInputFile != null ? getAdtsFrameIndex(mInputFile) : null;
+        if (index != null && index.getFrameCount() >= mNumFrames) {
+            for (int i = 0; i < mNumFrames; i++) {
+                mFrameLens[i] = index.frameLength(i);
+                mFrameOffsets[i] = (int) index.frameOffset(i);
+            }
+            return;
+        }
         int frameLens = (int)((1000 * mAvgBitRate / 8) *
                 ((float)getSamplesPerFrame() / mSampleRate));
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                value = 0;
-                for (int k=0; k<mChannels; k++) {
-                    if (mDecodedSamples.remaining() > 0) {
-                        value += Math.abs(mDecodedSamples.get());
-                    }
-                }
-                value /= mChannels;
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            mFrameGains[i] = (int) Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
+        for (int i=0; i<mNumFrames; i++){
             mFrameLens[i] = frameLens;  // totally not accurate...
             mFrameOffsets[i] = (int)(i * (1000 * mAvgBitRate / 8) *  //  = i * frameLens
                     ((float)getSamplesPerFrame() / mSampleRate));
         }
-        mDecodedSamples.rewind();
-        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
     }
 
     private void RecordAudio() {
@@ -503,6 +697,18 @@ public class SoundFile {
 
     public void WriteFile(File outputFile, float startTime, float endTime)
             throws IOException {
+        if (isAdtsInput()) {
+            // The audio is AAC already: copy its frames rather than decoding and encoding them.
+            long startUs = (long) (startTime * 1000000);
+            long endUs = (long) (endTime * 1000000);
+            if (outputFile.getName().endsWith(".aac")) {
+                AdtsFiles.trim(mInputFile, startUs, endUs, outputFile);
+            } else {
+                AdtsFiles.trimToM4a(mInputFile, startUs, endUs, outputFile);
+            }
+            return;
+        }
+
         int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
         int numSamples = (int)((endTime - startTime) * mSampleRate);
         // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making it stereo.
@@ -513,134 +719,121 @@ public class SoundFile {
         MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
         MediaFormat format = MediaFormat.createAudioFormat(mimeType, mSampleRate, numChannels);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        codec.start();
-
-        // Get an estimation of the encoded data based on the bitrate. Add 10% to it.
-        int estimatedEncodedSize = (int)((endTime - startTime) * (bitrate / 8) * 1.1);
-        ByteBuffer encodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean done_reading = false;
-        long presentation_time = 0;
-
-        int frame_size = 1024;  // number of samples per frame per channel for an mp4 (AAC) stream.
-        byte buffer[] = new byte[frame_size * numChannels * 2];  // a sample is coded with a short.
-        mDecodedBytes.position(startOffset);
-        numSamples += (2 * frame_size);  // Adding 2 frames, Cf. priming frames for AAC.
-        int tot_num_frames = 1 + (numSamples / frame_size);  // first AAC frame = 2 bytes
-        if (numSamples % frame_size != 0) {
-            tot_num_frames++;
-        }
-        int[] frame_sizes = new int[tot_num_frames];
-        int num_out_frames = 0;
-        int num_frames=0;
-        int num_samples_left = numSamples;
-        int encodedSamplesSize = 0;  // size of the output buffer containing the encoded samples.
-        byte[] encodedSamples = null;
-        while (true) {
-            // Feed the samples to the encoder.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                if (num_samples_left <= 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    inputBuffers[inputBufferIndex].clear();
-                    if (buffer.length > inputBuffers[inputBufferIndex].remaining()) {
-                        // Input buffer is smaller than one frame. This should never happen.
-                        continue;
-                    }
-                    // bufferSize is a hack to create a stereo file from a mono stream.
-                    int bufferSize = (mChannels == 1) ? (buffer.length / 2) : buffer.length;
-                    if (mDecodedBytes.remaining() < bufferSize) {
-                        for (int i=mDecodedBytes.remaining(); i < bufferSize; i++) {
-                            buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                        }
-                        mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-                    } else {
-                        mDecodedBytes.get(buffer, 0, bufferSize);
-                    }
-                    if (mChannels == 1) {
-                        for (int i=bufferSize - 1; i >= 1; i -= 2) {
-                            buffer[2*i + 1] = buffer[i];
-                            buffer[2*i] = buffer[i-1];
-                            buffer[2*i - 1] = buffer[2*i + 1];
-                            buffer[2*i - 2] = buffer[2*i];
-                        }
-                    }
-                    num_samples_left -= frame_size;
-                    inputBuffers[inputBufferIndex].put(buffer);
-                    presentation_time = (long) (((num_frames++) * frame_size * 1e6) / mSampleRate);
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, buffer.length, presentation_time, 0);
-                }
+
+        ByteBuffer samples = mDecodedBytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        samples.position(Math.min(startOffset, samples.limit()));
+        numSamples += (2 * 1024);  // Adding 2 frames, Cf. priming frames for AAC.
+        // The encoded frames go straight to the file, whatever the length of the selection.
+        M4aStreamWriter writer = new M4aStreamWriter(outputFile, mSampleRate, numChannels, bitrate);
+        boolean isWritten = false;
+        try {
+            EncodeStages stages = new EncodeStages(samples, numSamples, numChannels, writer);
+            CodecPipeline.run(new MediaCodecAdapter(
+                    codec, format, MediaCodec.CONFIGURE_FLAG_ENCODE), stages, stages);
+            writer.close();
+            isWritten = true;
+        } finally {
+            if (!isWritten) {
+                // No truncated file which would look valid.
+                writer.abort();
             }
+        }
+    }
 
-            // Get the encoded samples from the encoder.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0 && info.presentationTimeUs >=0) {
-                if (num_out_frames < frame_sizes.length) {
-                    frame_sizes[num_out_frames++] = info.size;
-                }
-                if (encodedSamplesSize < info.size) {
-                    encodedSamplesSize = info.size;
-                    encodedSamples = new byte[encodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(encodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-                if (encodedBytes.remaining() < info.size) {  // Hopefully this should not happen.
-                    estimatedEncodedSize = (int)(estimatedEncodedSize * 1.2);  // Add 20%.
-                    ByteBuffer newEncodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-                    int position = encodedBytes.position();
-                    encodedBytes.rewind();
-                    newEncodedBytes.put(encodedBytes);
-                    encodedBytes = newEncodedBytes;
-                    encodedBytes.position(position);
+    // The stages of WriteFile(): from the decoded samples to the encoder, and from the encoder to
+    // the .m4a file. Called on the codec thread.
+    private class EncodeStages implements CodecPipeline.Source, CodecPipeline.Sink {
+        // number of samples per frame per channel for an mp4 (AAC) stream.
+        private static final int FRAME_SIZE = 1024;
+
+        private final ByteBuffer mSamples;
+        private final int mNumChannels;
+        private final M4aStreamWriter mWriter;
+        private int mNumSamplesLeft;
+        private int mNumFrames;
+        private long mPresentationTimeUs;
+
+        EncodeStages(ByteBuffer samples, int numSamples, int numChannels, M4aStreamWriter writer) {
+            mSamples = samples;
+            mNumSamplesLeft = numSamples;
+            mNumChannels = numChannels;
+            mWriter = writer;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            if (mNumSamplesLeft <= 0) {
+                // All samples have been read.
+                return CodecPipeline.END_OF_STREAM;
+            }
+            int frameBytes = FRAME_SIZE * mNumChannels * 2;  // a sample is coded with a short.
+            if (frameBytes > buffer.remaining()) {
+                // Input buffer is smaller than one frame. This should never happen.
+                throw new IllegalStateException("Encoder input buffer too small");
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mChannels == mNumChannels) {
+                // Straight from the decoded samples to the codec.
+                int count = Math.min(frameBytes, mSamples.remaining());
+                int limit = mSamples.limit();
+                mSamples.limit(mSamples.position() + count);
+                buffer.put(mSamples);
+                mSamples.limit(limit);
+            } else {
+                // Create a stereo frame from a mono stream.
+                int count = Math.min(FRAME_SIZE, mSamples.remaining() / 2);
+                for (int i = 0; i < count; i++) {
+                    short sample = mSamples.getShort();
+                    buffer.putShort(sample);
+                    buffer.putShort(sample);
                 }
-                encodedBytes.put(encodedSamples, 0, info.size);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
             }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                // We got all the encoded data from the encoder.
-                break;
+            while (buffer.position() < frameBytes) {
+                buffer.put((byte) 0);  // pad with extra 0s to make a full frame.
             }
+            mNumSamplesLeft -= FRAME_SIZE;
+            mPresentationTimeUs = (long) (((mNumFrames++) * FRAME_SIZE * 1e6) / mSampleRate);
+            return frameBytes;
         }
-        int encoded_size = encodedBytes.position();
-        encodedBytes.rewind();
-        codec.stop();
-        codec.release();
-        codec = null;
 
-        // Write the encoded stream to the file, 4kB at a time.
-        buffer = new byte[4096];
-        try {
-            FileOutputStream outputStream = new FileOutputStream(outputFile);
-            outputStream.write(
-                    MP4Header.getMP4Header(mSampleRate, numChannels, frame_sizes, bitrate));
-            while (encoded_size - encodedBytes.position() > buffer.length) {
-                encodedBytes.get(buffer);
-                outputStream.write(buffer);
+        @Override
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        @Override
+        public boolean write(ByteBuffer output, long presentationTimeUs, int flags)
+                throws IOException {
+            if (presentationTimeUs >= 0) {
+                mWriter.writeFrame(output);
             }
-            int remaining = encoded_size - encodedBytes.position();
-            if (remaining > 0) {
-                encodedBytes.get(buffer, 0, remaining);
-                outputStream.write(buffer, 0, remaining);
+            return true;
+        }
+    }
+
+    // Whether the audio was read from an ADTS stream of AAC LC frames, as recorded segments are.
+    // Only the first header is read: an export must not cost a pass over the whole file.
+    private boolean isAdtsInput() {
+        if (mInputFile == null || !"aac".equals(mFileType)) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(AdtsHeader.SIZE);
+        try {
+            FileInputStream input = new FileInputStream(mInputFile);
+            try {
+                FileChannel channel = input.getChannel();
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // Read the whole header.
+                }
+            } finally {
+                input.close();
             }
-            outputStream.close();
         } catch (IOException e) {
-            Log.e("Ringdroid", "Failed to create the .m4a file.");
-            Log.e("Ringdroid", getStackTrace(e));
+            return false;
         }
+        header.flip();
+        return AdtsHeader.INSTANCE.isValid(header, 0)
+                && AdtsHeader.INSTANCE.audioObjectType(header, 0) == AdtsHeader.AAC_LC;
     }
 
     // Method used to swap the left and right channels (needed for stereo WAV files).
@@ -31,8 +31,12 @@ class WaveFormViewManager(
     private val markStartButton: TextView?,
     private val markEndButton: TextView?,
     //private val mFilename: String,
-    private val soundFile: SoundFile,
+    private var peaks: WaveformPeaks,
+    private val flags: List<Flag>,
     private val resources: Resources,
+    // Length of the whole audio when peaks only cover its start, see updatePeaks().
+    private val expectedNumFrames: Int = peaks.numFrames,
+    private val soundFileRequestListener: (() -> Unit)? = null,
 ) : WaveformView.WaveformListener, MarkerView.MarkerListener,
     ViewTreeObserver.OnGlobalLayoutListener {
 
@@ -71,6 +75,9 @@ class WaveFormViewManager(
     private var mLoadingLastUpdateTime: Long = 0
     private var mProgressDialog: ProgressDialog? = null
     private var mLoadingKeepGoing = false
+    private var soundFile: SoundFile? = null
+    private var pcmSource: PcmSource? = null
+    private var mPendingPlayPosition: Int = -1
     //private val mPlaybackLiveData = MutableLiveData<Int>()
 
     private val mPlayListener = View.OnClickListener { onPlay(mStartPos) }
@@ -244,12 +251,10 @@ class WaveFormViewManager(
 
     private fun initWaveFormView() {
 
-        val flagList = mutableListOf(Flag(-1, 10, 0), Flag(-1, 20, 0), Flag(-1, 30, 0))
-
-        mWaveformView.setFlags(flagList)
+        mWaveformView.setFlags(flags)
         mWaveformView.setListener(this)
 
-        mWaveformView.setSoundFile(soundFile)
+        mWaveformView.setPeaks(peaks, expectedNumFrames)
 
         mWaveformView.recomputeHeights(mDensity)
 
@@ -314,18 +319,7 @@ class WaveFormViewManager(
         }
     }
 
-    override fun waveformZoomIn() {
-        mWaveformView.zoomIn()
-        mStartPos = mWaveformView.start
-        mEndPos = mWaveformView.end
-        mMaxPos = mWaveformView.maxPos()
-        mOffset = mWaveformView.offset
-        mOffsetGoal = mOffset
-        updateDisplay()
-    }
-
-    override fun waveformZoomOut() {
-        mWaveformView.zoomOut()
+    override fun waveformZoom() {
         mStartPos = mWaveformView.start
         mEndPos = mWaveformView.end
         mMaxPos = mWaveformView.maxPos()
@@ -449,9 +443,82 @@ class WaveFormViewManager(
         mEndMarker.setLayoutParams(params)
     }
 
+    /**
+     * Shows [peaks] instead of the current ones, keeping the zoom and the selection. Used to
+     * extend the waveform as the audio is being decoded.
+     */
+    fun updatePeaks(peaks: WaveformPeaks) {
+        this.peaks = peaks
+        if (isInitialised) {
+            mWaveformView.updatePeaks(peaks)
+            mMaxPos = mWaveformView.maxPos()
+            updateDisplay()
+        }
+    }
+
+    /**
+     * The waveform is drawn from the peaks only. The decoded sound file is just needed for
+     * playback, so it can be handed over later, typically after [soundFileRequestListener]
+     * asked for it. It is not used for playback if a [PcmSource] already is. It is released by
+     * [release].
+     */
+    fun setSoundFile(soundFile: SoundFile) {
+        if (this.soundFile !== soundFile)
+            this.soundFile?.release()
+        this.soundFile = soundFile
+        if (isInitialised) {
+            loadFromFile()
+        }
+    }
+
+    /**
+     * Same as [setSoundFile] for audio decoded as it is played, see [SoundFile.openWindowed].
+     * The source is closed by [release].
+     */
+    fun setPcmSource(pcmSource: PcmSource) {
+        this.pcmSource = pcmSource
+        if (isInitialised) {
+            loadFromFile()
+        }
+    }
+
+    /**
+     * Stops playback and frees the player and the sound file, the manager cannot be used
+     * afterwards.
+     */
+    fun release() {
+        mHandler.removeCallbacks(mTimerRunnable)
+        mPlayer?.release()
+        mPlayer = null
+        pcmSource?.close()
+        pcmSource = null
+        soundFile?.release()
+        soundFile = null
+    }
+
     private fun loadFromFile() {
 
-        mPlayer = SamplePlayer(soundFile)
+        // The player is kept once there is one: either source is enough for playback, and a new
+        // player would lose the position and completion listener of the one possibly playing.
+        if (mPlayer != null) {
+            pcmSource?.close()
+            pcmSource = null
+            return
+        }
+
+        // The decoded sound file is preferred. A player closes its source when released.
+        val player = soundFile?.let { SamplePlayer(it) }
+            ?: pcmSource?.let { SamplePlayer(it) }
+            ?: return
+        pcmSource?.let { if (soundFile != null) it.close() }
+        pcmSource = null
+        mPlayer = player
+
+        if (mPendingPlayPosition >= 0) {
+            val position = mPendingPlayPosition
+            mPendingPlayPosition = -1
+            onPlay(position)
+        }
 
         /*mFile = File(mFilename)
 
@@ -700,7 +767,9 @@ class WaveFormViewManager(
             return
         }
         if (mPlayer == null) {
-            // Not initialized yet
+            // Not initialized yet. Play as soon as the sound file is decoded.
+            mPendingPlayPosition = startPosition
+            soundFileRequestListener?.invoke()
             return
         }
         try {
@@ -0,0 +1,169 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The frame gains WaveformView needs to draw an audio file, without any of its samples.
+ * <p>
+ * Peaks can be persisted next to the audio file they describe (see getPeaksFile()), so the
+ * waveform of a segment can be drawn again without decoding it. A gain is sqrt(max sample) and
+ * always fits in one unsigned byte, which is how gains are stored. The peaks file is keyed by
+ * the size and modification time of the audio file: it is ignored as soon as the audio changes.
+ */
+public class WaveformPeaks {
+    public static final String FILE_EXTENSION = ".peaks";
+
+    private static final int MAGIC = 0x5045414B;  // "PEAK"
+    private static final int VERSION = 1;
+    private static final String TMP_EXTENSION = ".tmp";
+
+    private final int mSampleRate;
+    private final int mSamplesPerFrame;
+    private final int[] mFrameGains;
+
+    public WaveformPeaks(int sampleRate, int samplesPerFrame, int[] frameGains) {
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+        mFrameGains = frameGains;
+    }
+
+    public static WaveformPeaks fromSoundFile(SoundFile soundFile) {
+        return new WaveformPeaks(soundFile.getSampleRate(), soundFile.getSamplesPerFrame(),
+                soundFile.getFrameGains());
+    }
+
+    // Return the peaks of the given parts played one after the other, or null if they cannot be
+    // joined (missing part, or parts with different frame durations).
+    public static WaveformPeaks concat(List<WaveformPeaks> parts) {
+        if (parts.isEmpty() || parts.contains(null)) {
+            return null;
+        }
+        WaveformPeaks first = parts.get(0);
+        int numFrames = 0;
+        for (WaveformPeaks part : parts) {
+            if (part.mSampleRate != first.mSampleRate
+                    || part.mSamplesPerFrame != first.mSamplesPerFrame) {
+                return null;
+            }
+            numFrames += part.getNumFrames();
+        }
+        int[] frameGains = new int[numFrames];
+        int offset = 0;
+        for (WaveformPeaks part : parts) {
+            System.arraycopy(part.mFrameGains, 0, frameGains, offset, part.getNumFrames());
+            offset += part.getNumFrames();
+        }
+        return new WaveformPeaks(first.mSampleRate, first.mSamplesPerFrame, frameGains);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    public int getNumFrames() {
+        return mFrameGains.length;
+    }
+
+    public int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Return the file holding the peaks of audioFile.
+    public static File getPeaksFile(File audioFile) {
+        return new File(audioFile.getPath() + FILE_EXTENSION);
+    }
+
+    // Read the peaks persisted for audioFile. Return null if there are none, or if they do not
+    // match the current content of audioFile.
+    public static WaveformPeaks read(File audioFile) {
+        File peaksFile = getPeaksFile(audioFile);
+        if (!peaksFile.isFile()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(peaksFile)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            long size = input.readLong();
+            long lastModified = input.readLong();
+            if (size != audioFile.length() || lastModified != audioFile.lastModified()) {
+                return null;
+            }
+            int sampleRate = input.readInt();
+            int samplesPerFrame = input.readInt();
+            int numFrames = input.readInt();
+            if (numFrames < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[numFrames];
+            input.readFully(bytes);
+            int[] frameGains = new int[numFrames];
+            for (int i = 0; i < numFrames; i++) {
+                frameGains[i] = bytes[i] & 0xFF;
+            }
+            return new WaveformPeaks(sampleRate, samplesPerFrame, frameGains);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(input);
+        }
+    }
+
+    // Persist these peaks next to audioFile. audioFile must not change afterwards, otherwise the
+    // peaks will be considered stale.
+    public void write(File audioFile) throws IOException {
+        File peaksFile = getPeaksFile(audioFile);
+        File tmpFile = new File(peaksFile.getPath() + TMP_EXTENSION);
+        byte[] bytes = new byte[mFrameGains.length];
+        for (int i = 0; i < mFrameGains.length; i++) {
+            bytes[i] = (byte) Math.max(0, Math.min(255, mFrameGains[i]));
+        }
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(audioFile.length());
+            output.writeLong(audioFile.lastModified());
+            output.writeInt(mSampleRate);
+            output.writeInt(mSamplesPerFrame);
+            output.writeInt(mFrameGains.length);
+            output.write(bytes);
+            output.close();  // must not fail silently, the file would be truncated.
+            output = null;
+        } finally {
+            close(output);
+        }
+        if (!tmpFile.renameTo(peaksFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to create " + peaksFile);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing else to do here.
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+/**
+ * The heights WaveformView draws at every zoom level, kept as a pyramid of peaks.
+ * <p>
+ * Level 0 holds one unsigned byte per frame: its height, from 0 to 255. Each level above holds
+ * the max of two neighbours of the level below, up to a level of a single peak, so the whole
+ * pyramid takes about two bytes per frame. A pyramid is never modified once built, it can be
+ * read from any thread.
+ * <p>
+ * Columns can be drawn at any zoom, given in columns per frame. Zoomed in, columns interpolate
+ * between frames. Zoomed out, each column is the max of the few peaks of the level whose peaks
+ * are the closest to a column wide, so drawing a column costs the same at any zoom.
+ */
+class WaveformPyramid {
+    private static final int MIN_FRAMES_PER_TASK = 16384;
+
+    private final byte[][] mLevels;
+
+    private WaveformPyramid(byte[][] levels) {
+        mLevels = levels;
+    }
+
+    static WaveformPyramid fromPeaks(WaveformPeaks peaks) {
+        final int numFrames = peaks.getNumFrames();
+        final int[] frameGains = peaks.getFrameGains();
+
+        // Each pass is split between the cores (see ParallelChunks), chunks keep their own
+        // results which are then merged.
+        int numChunks = ParallelChunks.numChunks(numFrames, MIN_FRAMES_PER_TASK);
+
+        // Make sure the range is no more than 0 - 255
+        final double[] maxGains = new double[numChunks];
+        ParallelChunks.run(numFrames, MIN_FRAMES_PER_TASK, new ParallelChunks.Task() {
+            @Override
+            public void run(int index, int from, int to) {
+                double maxGain = 1.0;
+                for (int i = from; i < to; i++) {
+                    maxGain = Math.max(maxGain, smoothedGain(frameGains, numFrames, i));
+                }
+                maxGains[index] = maxGain;
+            }
+        });
+        double maxGain = 1.0;
+        for (double chunkMaxGain : maxGains) {
+            maxGain = Math.max(maxGain, chunkMaxGain);
+        }
+        double scaleFactor = 1.0;
+        if (maxGain > 255.0) {
+            scaleFactor = 255 / maxGain;
+        }
+
+        // Build histogram of 256 bins and figure out the new scaled max
+        final double histScaleFactor = scaleFactor;
+        final int[][] chunkHists = new int[numChunks][256];
+        ParallelChunks.run(numFrames, MIN_FRAMES_PER_TASK, new ParallelChunks.Task() {
+            @Override
+            public void run(int index, int from, int to) {
+                int[] gainHist = chunkHists[index];
+                for (int i = from; i < to; i++) {
+                    int smoothedGain =
+                            (int) (smoothedGain(frameGains, numFrames, i) * histScaleFactor);
+                    if (smoothedGain < 0)
+                        smoothedGain = 0;
+                    if (smoothedGain > 255)
+                        smoothedGain = 255;
+
+                    gainHist[smoothedGain]++;
+                }
+            }
+        });
+        maxGain = 0;
+        int gainHist[] = new int[256];
+        for (int[] chunkHist : chunkHists) {
+            for (int gain = 0; gain < 256; gain++) {
+                gainHist[gain] += chunkHist[gain];
+                if (chunkHist[gain] > 0 && gain > maxGain)
+                    maxGain = gain;
+            }
+        }
+
+        // Re-calibrate the min to be 5%
+        double minGain = 0;
+        int sum = 0;
+        while (minGain < 255 && sum < numFrames / 20) {
+            sum += gainHist[(int) minGain];
+            minGain++;
+        }
+
+        // Re-calibrate the max to be 99%
+        sum = 0;
+        while (maxGain > 2 && sum < numFrames / 100) {
+            sum += gainHist[(int) maxGain];
+            maxGain--;
+        }
+
+        // Compute the heights
+        final byte[] heights = new byte[numFrames];
+        final double range = maxGain - minGain;
+        final double offset = minGain;
+        ParallelChunks.run(numFrames, MIN_FRAMES_PER_TASK, new ParallelChunks.Task() {
+            @Override
+            public void run(int index, int from, int to) {
+                for (int i = from; i < to; i++) {
+                    double value =
+                            (smoothedGain(frameGains, numFrames, i) * histScaleFactor - offset)
+                                    / range;
+                    if (value < 0.0)
+                        value = 0.0;
+                    if (value > 1.0)
+                        value = 1.0;
+                    heights[i] = (byte) Math.round(value * value * 255);
+                }
+            }
+        });
+
+        return new WaveformPyramid(buildLevels(heights));
+    }
+
+    private static byte[][] buildLevels(byte[] heights) {
+        int numLevels = 1;
+        for (int length = heights.length; length > 1; length = (length + 1) / 2) {
+            numLevels++;
+        }
+
+        byte[][] levels = new byte[numLevels][];
+        levels[0] = heights;
+        for (int k = 1; k < numLevels; k++) {
+            final byte[] below = levels[k - 1];
+            final byte[] level = new byte[(below.length + 1) / 2];
+            ParallelChunks.run(level.length, MIN_FRAMES_PER_TASK, new ParallelChunks.Task() {
+                @Override
+                public void run(int index, int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        int peak = below[2 * i] & 0xFF;
+                        if (2 * i + 1 < below.length) {
+                            peak = Math.max(peak, below[2 * i + 1] & 0xFF);
+                        }
+                        level[i] = (byte) peak;
+                    }
+                }
+            });
+            levels[k] = level;
+        }
+        return levels;
+    }
+
+    // Average of a frame gain and its neighbours.
+    private static double smoothedGain(int[] frameGains, int numFrames, int i) {
+        if (numFrames <= 2) {
+            return frameGains[i];
+        }
+        if (i == 0) {
+            return (frameGains[0] / 2.0) + (frameGains[1] / 2.0);
+        }
+        if (i == numFrames - 1) {
+            return (frameGains[numFrames - 2] / 2.0) + (frameGains[numFrames - 1] / 2.0);
+        }
+        return (frameGains[i - 1] / 3.0) + (frameGains[i] / 3.0) + (frameGains[i + 1] / 3.0);
+    }
+
+    /**
+     * @return the zoom at which the whole pyramid fits in one column.
+     */
+    double getMinColumnsPerFrame() {
+        return 1.0 / (1L << (mLevels.length - 1));
+    }
+
+    int getNumColumns(double columnsPerFrame) {
+        return (int) Math.ceil(mLevels[0].length * columnsPerFrame);
+    }
+
+    /**
+     * Scales the columns [from, to) at the given zoom to maxHeight and writes them to heights,
+     * starting at index 0.
+     */
+    void fillHeights(int[] heights, double columnsPerFrame, int from, int to, int maxHeight) {
+        byte[] frames = mLevels[0];
+        if (columnsPerFrame >= 1.0) {
+            // Linear interpolation, column i ending on frame (i + 1) / columnsPerFrame - 1.
+            for (int i = from; i < to; i++) {
+                double position = (i + 1) / columnsPerFrame - 1;
+                int frame = (int) Math.floor(position);
+                double weight = position - frame;
+                int before = frame >= 0 ? frames[frame] & 0xFF : 0;
+                int after = frame + 1 < frames.length ? frames[frame + 1] & 0xFF : before;
+                double peak = before + (after - before) * weight;
+                heights[i - from] = (int) (peak * maxHeight / 255);
+            }
+            return;
+        }
+
+        // The level whose peaks cover at most a column, so that a column spans 1 to 3 of them.
+        double framesPerColumn = 1.0 / columnsPerFrame;
+        int k = Math.min(mLevels.length - 1,
+                31 - Integer.numberOfLeadingZeros((int) framesPerColumn));
+        byte[] level = mLevels[k];
+        double peaksPerColumn = framesPerColumn / (1L << k);
+        for (int i = from; i < to; i++) {
+            int first = (int) (i * peaksPerColumn);
+            int last = Math.min(Math.max((int) ((i + 1) * peaksPerColumn), first + 1), level.length);
+            int peak = 0;
+            for (int j = first; j < last; j++) {
+                peak = Math.max(peak, level[j] & 0xFF);
+            }
+            heights[i - from] = peak * maxHeight / 255;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The waveform of a WaveformView pre-rendered into bitmaps of TILE_WIDTH columns, one set per
+ * zoom, so that scrolling only blits bitmaps however many lines they hold.
+ * <p>
+ * Tiles are ALPHA_8 masks: the view gives them their color when drawing them. They are rendered
+ * one at a time on a background thread and kept in an LruCache bounded by their size in bytes.
+ * get() returns null for a tile which is not rendered yet and queues it, the listener is told
+ * once it is available.
+ */
+class WaveformTileCache {
+    static final int TILE_WIDTH = 256;
+
+    interface Listener {
+        // Called on the rendering thread.
+        void onTileRendered();
+    }
+
+    private final Listener mListener;
+    private final LruCache<Long, Bitmap> mTiles;
+    private final Set<Long> mPendingTiles;  // guarded by this.
+    private final Paint mPaint;
+    private ExecutorService mExecutor;
+
+    private volatile WaveformPyramid mPyramid;
+    private volatile int mTileHeight;
+    private volatile int mGeneration;  // incremented each time every tile becomes stale.
+
+    WaveformTileCache(Listener listener) {
+        mListener = listener;
+        mPendingTiles = new HashSet<>();
+
+        // An eighth of the heap is plenty: a screen full of tiles is a few hundred KB.
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mTiles = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap tile) {
+                return tile.getRowBytes() * tile.getHeight();
+            }
+        };
+
+        mPaint = new Paint();
+        mPaint.setAntiAlias(false);
+    }
+
+    /**
+     * Sets what the tiles are drawn from. Every tile is dropped when it changes.
+     */
+    synchronized void setPyramid(WaveformPyramid pyramid, int tileHeight) {
+        if (pyramid != mPyramid || tileHeight != mTileHeight) {
+            clear();
+            mPyramid = pyramid;
+            mTileHeight = tileHeight;
+        }
+    }
+
+    /**
+     * @return the tile, or null if it is not rendered yet.
+     */
+    Bitmap get(double zoomFactor, int tile) {
+        long key = key(zoomFactor, tile);
+        Bitmap bitmap = mTiles.get(key);
+        if (bitmap == null) {
+            request(zoomFactor, tile, key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stops the rendering thread and drops every tile. The cache can be used again afterwards.
+     */
+    synchronized void release() {
+        clear();
+        mPyramid = null;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private synchronized void clear() {
+        mGeneration++;
+        mPendingTiles.clear();
+        mTiles.evictAll();
+    }
+
+    private synchronized void request(final double zoomFactor, final int tile, final long key) {
+        if (mPyramid == null || !mPendingTiles.add(key)) {
+            return;
+        }
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor();
+        }
+
+        final WaveformPyramid pyramid = mPyramid;
+        final int tileHeight = mTileHeight;
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    return;
+                }
+                Bitmap bitmap = render(pyramid, zoomFactor, tile, tileHeight);
+                synchronized (WaveformTileCache.this) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mPendingTiles.remove(key);
+                    if (bitmap != null) {
+                        mTiles.put(key, bitmap);
+                    }
+                }
+                mListener.onTileRendered();
+            }
+        });
+    }
+
+    private Bitmap render(WaveformPyramid pyramid, double zoomFactor, int tile, int tileHeight) {
+        int from = tile * TILE_WIDTH;
+        int to = Math.min(from + TILE_WIDTH, pyramid.getNumColumns(zoomFactor));
+        if (from >= to || tileHeight <= 0) {
+            return null;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(TILE_WIDTH, tileHeight, Bitmap.Config.ALPHA_8);
+        int[] heights = new int[to - from];
+        pyramid.fillHeights(heights, zoomFactor, from, to, tileHeight / 2 - 1);
+        float[] points = new float[heights.length * 4];
+        int count = fillLines(points, heights, heights.length, 0, tileHeight / 2);
+        new Canvas(bitmap).drawLines(points, 0, count, mPaint);
+        return bitmap;
+    }
+
+    /**
+     * Fills points with one vertical line for each of the first numColumns heights, for
+     * Canvas.drawLines(). The first line is drawn at x = x0, all are centered on y = center.
+     *
+     * @return the number of floats written.
+     */
+    static int fillLines(float[] points, int[] heights, int numColumns, int x0, int center) {
+        int p = 0;
+        for (int i = 0; i < numColumns; i++) {
+            float x = x0 + i;
+            int height = heights[i];
+            points[p++] = x;
+            points[p++] = center - height;
+            points[p++] = x;
+            points[p++] = center + 1 + height;
+        }
+        return p;
+    }
+
+    // Zooms too close to differ as floats draw the same tiles.
+    private static long key(double zoomFactor, int tile) {
+        return ((long) Float.floatToIntBits((float) zoomFactor) << 32) | (tile & 0xFFFFFFFFL);
+    }
+}
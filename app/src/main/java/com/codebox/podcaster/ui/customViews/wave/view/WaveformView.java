@@ -37,13 +37,13 @@ import com.codebox.podcaster.storage.db.app.segment.Flag;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * WaveformView is an Android view that displays a visual representation
- * of an audio waveform.  It retrieves the frame gains from a CheapSoundFile
- * object and recomputes the shape contour at several zoom levels.
+ * of an audio waveform.  It retrieves the frame gains from a WaveformPeaks
+ * object and draws them at several zoom levels from a WaveformPyramid.
  * <p>
  * This class doesn't handle selection or any of the touch interactions
  * directly, so it exposes a listener interface.  The class that embeds
@@ -52,9 +52,13 @@ import java.util.List;
  * <p>
  * WaveformView doesn't actually handle selection, but it will just display
  * the selected part of the waveform in a different color.
+ * <p>
+ * The waveform itself is drawn from bitmap tiles rendered in the background
+ * (see WaveformTileCache), the selection, flags and playback line over them.
  */
 public class WaveformView extends View {
     private static final String TAG = "WaveformView";
+    private static final double MAX_ZOOM_FACTOR = 2.0;  // columns per frame.
     private final Bitmap mFlagBitMap;
     private final int flagsHeight;
 
@@ -73,13 +77,9 @@ public class WaveformView extends View {
     private Paint mSelectionStartEndPaint;
 
 
-    private SoundFile mSoundFile;
-    private int[] mLenByZoomLevel;
-    private double[][] mValuesByZoomLevel;
-    private double[] mZoomFactorByZoomLevel;
-    private int[] mHeightsAtThisZoomLevel;
-    private int mZoomLevel;
-    private int mNumZoomLevels;
+    private WaveformPeaks mPeaks;
+    private WaveformPyramid mPyramid;
+    private double mZoomFactor;  // columns per frame, any value up to MAX_ZOOM_FACTOR.
     private int mSampleRate;
     private int mSamplesPerFrame;
     private int mOffset;
@@ -88,14 +88,24 @@ public class WaveformView extends View {
     private int mPlaybackPos;
     private float mDensity;
     private int textSize;
-    private float mInitialScaleSpan;
+    private boolean mScaling;
     private WaveformListener mListener;
     private GestureDetector mGestureDetector;
     private ScaleGestureDetector mScaleGestureDetector;
     private boolean mInitialized;
-    private HashSet<Integer> flags;
+    private long[] mFlagPositionsUs;  // position of each flag in the audio, sorted.
     private float topBottomGradientOffset;
 
+    private WaveformTileCache mTileCache;
+
+    // Reused on every frame, so that onDraw does not allocate.
+    private int[] mHeights;  // heights of the columns drawn without their tile.
+    private float[] mWaveformPoints;  // 4 floats (x0, y0, x1, y1) per column.
+    private int mStartTimeSecs;
+    private int mEndTimeSecs;
+    private String mStartTimeStr;
+    private String mEndTimeStr;
+
     public WaveformView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -162,34 +172,31 @@ public class WaveformView extends View {
                 new ScaleGestureDetector.SimpleOnScaleGestureListener() {
                     public boolean onScaleBegin(ScaleGestureDetector d) {
                         Log.v("Ringdroid", "ScaleBegin " + d.getCurrentSpanX());
-                        mInitialScaleSpan = Math.abs(d.getCurrentSpanX());
+                        mScaling = true;
                         return true;
                     }
 
                     public boolean onScale(ScaleGestureDetector d) {
-                        float scale = Math.abs(d.getCurrentSpanX());
-                        Log.v("Ringdroid", "Scale " + (scale - mInitialScaleSpan));
-                        if (scale - mInitialScaleSpan > 40) {
-                            mListener.waveformZoomIn();
-                            mInitialScaleSpan = scale;
-                        }
-                        if (scale - mInitialScaleSpan < -40) {
-                            mListener.waveformZoomOut();
-                            mInitialScaleSpan = scale;
+                        // Follow the horizontal span between the fingers, from event to event.
+                        float previousSpan = Math.abs(d.getPreviousSpanX());
+                        if (previousSpan < 1) {
+                            return false;
                         }
+                        zoomBy(Math.abs(d.getCurrentSpanX()) / previousSpan, d.getFocusX());
+                        mListener.waveformZoom();
                         return true;
                     }
 
                     public void onScaleEnd(ScaleGestureDetector d) {
                         Log.v("Ringdroid", "ScaleEnd " + d.getCurrentSpanX());
+                        mScaling = false;
+                        invalidate();
                     }
                 }
         );
 
-        mSoundFile = null;
-        mLenByZoomLevel = null;
-        mValuesByZoomLevel = null;
-        mHeightsAtThisZoomLevel = null;
+        mPeaks = null;
+        mPyramid = null;
         mOffset = 0;
         mPlaybackPos = -1;
         mSelectionStart = 0;
@@ -198,6 +205,16 @@ public class WaveformView extends View {
         textSize = 12;
         topBottomGradientOffset = 0.2f;
         flagsHeight = (int) (mFlagBitMap.getHeight() * 2);
+        mTileCache = new WaveformTileCache(new WaveformTileCache.Listener() {
+            @Override
+            public void onTileRendered() {
+                postInvalidate();
+            }
+        });
+        mHeights = new int[0];
+        mWaveformPoints = new float[0];
+        mStartTimeSecs = -1;
+        mEndTimeSecs = -1;
         mInitialized = false;
     }
 
@@ -224,74 +241,115 @@ public class WaveformView extends View {
     }
 
     public boolean hasSoundFile() {
-        return mSoundFile != null;
+        return mPeaks != null;
     }
 
     public void setSoundFile(SoundFile soundFile) {
-        mSoundFile = soundFile;
-        mSampleRate = mSoundFile.getSampleRate();
-        mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
-        computeDoublesForAllZoomLevels();
-        mHeightsAtThisZoomLevel = null;
+        setPeaks(WaveformPeaks.fromSoundFile(soundFile));
     }
 
-    public boolean isInitialized() {
-        return mInitialized;
+    /**
+     * Only the frame gains are needed to draw the waveform, so peaks read from
+     * a cache can be displayed without decoding the audio file.
+     */
+    public void setPeaks(WaveformPeaks peaks) {
+        setPeaks(peaks, peaks.getNumFrames());
     }
 
-    public int getZoomLevel() {
-        return mZoomLevel;
-    }
+    /**
+     * Same as above, for peaks of only the start of the audio: the zoom is chosen for
+     * expectedNumFrames, the length of the whole audio. The rest of the peaks are then given to
+     * updatePeaks() as they come.
+     */
+    public void setPeaks(WaveformPeaks peaks, int expectedNumFrames) {
+        updatePeaks(peaks);
 
-    public void setZoomLevel(int zoomLevel) {
-        while (mZoomLevel > zoomLevel) {
-            zoomIn();
-        }
-        while (mZoomLevel < zoomLevel) {
-            zoomOut();
+        int numFrames = expectedNumFrames;
+        if (numFrames > 5000) {
+            mZoomFactor = 0.25;
+        } else if (numFrames > 1000) {
+            mZoomFactor = 0.5;
+        } else if (numFrames > 300) {
+            mZoomFactor = 1.0;
+        } else {
+            mZoomFactor = 2.0;
         }
+
+        mInitialized = true;
+    }
+
+    /**
+     * Replaces the peaks without changing the zoom or the positions, typically by the peaks of
+     * more of the same audio while it is being decoded.
+     */
+    public void updatePeaks(WaveformPeaks peaks) {
+        mPeaks = peaks;
+        mSampleRate = mPeaks.getSampleRate();
+        mSamplesPerFrame = mPeaks.getSamplesPerFrame();
+        mPyramid = WaveformPyramid.fromPeaks(mPeaks);
+        invalidate();
+    }
+
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    public double getZoomFactor() {
+        return mZoomFactor;
     }
 
     public boolean canZoomIn() {
-        return (mZoomLevel > 0);
+        return (mZoomFactor < MAX_ZOOM_FACTOR);
     }
 
     public void zoomIn() {
-        if (canZoomIn()) {
-            mZoomLevel--;
-            mSelectionStart *= 2;
-            mSelectionEnd *= 2;
-            mHeightsAtThisZoomLevel = null;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter *= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            invalidate();
-        }
+        zoomBy(2, getMeasuredWidth() / 2);
     }
 
     public boolean canZoomOut() {
-        return (mZoomLevel < mNumZoomLevels - 1);
+        return (mZoomFactor > getMinZoomFactor());
     }
 
     public void zoomOut() {
-        if (canZoomOut()) {
-            mZoomLevel++;
-            mSelectionStart /= 2;
-            mSelectionEnd /= 2;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter /= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            mHeightsAtThisZoomLevel = null;
-            invalidate();
+        zoomBy(0.5, getMeasuredWidth() / 2);
+    }
+
+    /**
+     * Multiplies the zoom by scale, within its bounds, keeping the audio at focusX in place.
+     * Positions (offset, selection, playback) are rescaled to the new zoom.
+     */
+    public void zoomBy(double scale, float focusX) {
+        double zoomFactor = Math.max(getMinZoomFactor(),
+                Math.min(mZoomFactor * scale, MAX_ZOOM_FACTOR));
+        double ratio = zoomFactor / mZoomFactor;
+        if (ratio == 1.0) {
+            return;
+        }
+
+        mZoomFactor = zoomFactor;
+        mSelectionStart = (int) Math.round(mSelectionStart * ratio);
+        mSelectionEnd = (int) Math.round(mSelectionEnd * ratio);
+        if (mPlaybackPos >= 0) {
+            mPlaybackPos = (int) Math.round(mPlaybackPos * ratio);
+        }
+        mOffset = (int) Math.round((mOffset + focusX) * ratio - focusX);
+        if (mOffset < 0)
+            mOffset = 0;
+        invalidate();
+    }
+
+    // Zoomed out until the whole audio fits in the view, or in the pyramid's last level.
+    private double getMinZoomFactor() {
+        int numFrames = mPeaks.getNumFrames();
+        if (numFrames == 0) {
+            return MAX_ZOOM_FACTOR;
         }
+        double fitToWidth = (double) getMeasuredWidth() / numFrames;
+        return Math.max(mPyramid.getMinColumnsPerFrame(), Math.min(fitToWidth, 1.0));
     }
 
     public int maxPos() {
-        return mLenByZoomLevel[mZoomLevel];
+        return mPyramid.getNumColumns(mZoomFactor);
     }
 
     public int secondsToFrames(double seconds) {
@@ -299,23 +357,23 @@ public class WaveformView extends View {
     }
 
     public int secondsToPixels(double seconds) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (int) (z * seconds * mSampleRate / mSamplesPerFrame + 0.5);
     }
 
     public double pixelsToSeconds(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (pixels * (double) mSamplesPerFrame / (mSampleRate * z));
     }
 
     public int millisecsToPixels(int msecs) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (int) ((msecs * 1.0 * mSampleRate * z) /
                 (1000.0 * mSamplesPerFrame) + 0.5);
     }
 
     public int pixelsToMillisecs(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (int) (pixels * (1000.0 * mSamplesPerFrame) /
                 (mSampleRate * z) + 0.5);
     }
@@ -347,29 +405,21 @@ public class WaveformView extends View {
     }
 
     public void setFlags(@NotNull List<Flag> flagList) {
-
-
-        this.flags = new HashSet<>();
-        for (Flag flag : flagList) {
-            flags.add(flag.getSecondsAfterRecording());
+        mFlagPositionsUs = new long[flagList.size()];
+        for (int i = 0; i < mFlagPositionsUs.length; i++) {
+            mFlagPositionsUs[i] = flagList.get(i).getPositionUs();
         }
+        Arrays.sort(mFlagPositionsUs);
+        invalidate();
     }
 
     public void recomputeHeights(float density) {
-        mHeightsAtThisZoomLevel = null;
         mDensity = density;
         mTimecodePaint.setTextSize((int) (textSize * density));
 
         invalidate();
     }
 
-    protected void drawWaveformLine(Canvas canvas,
-                                    int x, int y0, int y1,
-                                    Paint paint) {
-        canvas.drawLine(x, y0, x, y1, paint);
-    }
-
-
     private Paint initGradientPaint(int[] gradientColors, int y0, int y1) {
 
         Paint paint = new Paint();
@@ -380,11 +430,17 @@ public class WaveformView extends View {
         return paint;
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mTileCache.release();
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        if (mSoundFile == null)
+        if (mPeaks == null)
             return;
 
         int measuredWidth = getMeasuredWidth();
@@ -395,12 +451,10 @@ public class WaveformView extends View {
         int topAfterGradient = flagsHeight + gradientHeight;
         int waveMaxHeight = bottomOfGradient - flagsHeight - (2 * gradientHeight);
 
-        if (mHeightsAtThisZoomLevel == null)
-            computeIntsForThisZoomLevel(waveMaxHeight);
-
+        mTileCache.setPyramid(mPyramid, waveMaxHeight);
 
         int start = mOffset;
-        int width = mHeightsAtThisZoomLevel.length - start;
+        int width = maxPos() - start;
 
         if (width > measuredWidth)
             width = measuredWidth;
@@ -421,44 +475,79 @@ public class WaveformView extends View {
     }
 
     private void drawPlaybackLine(Canvas canvas, int width, int start, int top, int bottom) {
-        for (int i = 0; i < width; i++) {
-            if (i + start == mPlaybackPos) {
-                canvas.drawLine(i, top, i, bottom, mPlaybackLinePaint);
-            }
+        int x = mPlaybackPos - start;
+        if (x >= 0 && x < width) {
+            canvas.drawLine(x, top, x, bottom, mPlaybackLinePaint);
         }
     }
 
     private void drawSelection(Canvas canvas, int width, int start, int top, int bottom) {
 
-        /*if (mSelectionStart == -1 || mSelectionEnd == -1){
-            mSelectionStart = width / 3;
-            mSelectionEnd = width / 2;
-        }*/
+        // Columns strictly between the two markers.
+        int left = Math.max(mSelectionStart + 1 - start, 0);
+        int right = Math.min(mSelectionEnd - start, width);
+        if (left < right) {
+            canvas.drawRect(left, top, right, bottom, mSelectedLinePaint);
+        }
 
-        for (int i = 0; i < width; i++) {
+        int startX = mSelectionStart - start;
+        if (startX >= 0 && startX < width) {
+            canvas.drawLine(startX, top, startX, bottom, mSelectionStartEndPaint);
+        }
+        int endX = mSelectionEnd - start;
+        if (endX >= 0 && endX < width) {
+            canvas.drawLine(endX, top, endX, bottom, mSelectionStartEndPaint);
+        }
+    }
 
-            int point = i + start;
+    private void drawWaveForm(Canvas canvas, int start, int width, int top, int waveMaxHeight) {
+        if (width <= 0) {
+            return;
+        }
 
-            if (point == mSelectionStart || point == mSelectionEnd) {
-                canvas.drawLine(i, top, i, bottom, mSelectionStartEndPaint);
-            }
+        // While pinching, the zoom changes on every frame: tiles would be rendered for nothing.
+        int end = start + width;
+        if (mScaling) {
+            drawColumns(canvas, start, end, start, top, waveMaxHeight);
+            return;
+        }
 
-            if (point > mSelectionStart && point < mSelectionEnd) {
-                canvas.drawLine(i, top, i, bottom, mSelectedLinePaint);
+        // Blit the tiles already rendered, and draw the columns of the others directly
+        // until they are.
+        int missingFrom = -1;
+        for (int tile = start / WaveformTileCache.TILE_WIDTH; ; tile++) {
+            int tileStart = tile * WaveformTileCache.TILE_WIDTH;
+            if (tileStart >= end) {
+                break;
+            }
+            Bitmap bitmap = mTileCache.get(mZoomFactor, tile);
+            if (bitmap != null) {
+                canvas.drawBitmap(bitmap, tileStart - start, top, mUnselectedLinePaint);
+                if (missingFrom >= 0) {
+                    drawColumns(canvas, missingFrom, tileStart, start, top, waveMaxHeight);
+                    missingFrom = -1;
+                }
+            } else if (missingFrom < 0) {
+                missingFrom = Math.max(tileStart, start);
             }
         }
+        if (missingFrom >= 0) {
+            drawColumns(canvas, missingFrom, end, start, top, waveMaxHeight);
+        }
     }
 
-    private void drawWaveForm(Canvas canvas, int start, int width, int top, int waveMaxHeight) {
-
-        int ctr = waveMaxHeight / 2;
-        for (int i = 0; i < width; i++) {
-            drawWaveformLine(
-                    canvas, i,
-                    top + ctr - mHeightsAtThisZoomLevel[start + i],
-                    top + ctr + 1 + mHeightsAtThisZoomLevel[start + i],
-                    mUnselectedLinePaint);
+    private void drawColumns(Canvas canvas, int from, int to, int start, int top, int waveMaxHeight) {
+        int numColumns = to - from;
+        if (mHeights.length < numColumns) {
+            mHeights = new int[numColumns];
+            mWaveformPoints = new float[numColumns * 4];
         }
+
+        // One vertical line per column, all drawn by a single drawLines call.
+        mPyramid.fillHeights(mHeights, mZoomFactor, from, to, waveMaxHeight / 2 - 1);
+        int count = WaveformTileCache.fillLines(mWaveformPoints, mHeights, numColumns,
+                from - start, top + waveMaxHeight / 2);
+        canvas.drawLines(mWaveformPoints, 0, count, mUnselectedLinePaint);
     }
 
     private void drawTimeAtStartAndEnd(Canvas canvas, int width, int right, int bottom) {
@@ -468,8 +557,17 @@ public class WaveformView extends View {
         int startTime = (int) (fractionalSecs + onePixelInSecs);
         int endTime = (int) (fractionalSecs + (onePixelInSecs * width));
 
-        String startTimeStr = getTimeString(startTime);
-        String endTimeStr = getTimeString(endTime);
+        // The strings only change once per second of scrolling.
+        if (startTime != mStartTimeSecs) {
+            mStartTimeSecs = startTime;
+            mStartTimeStr = getTimeString(startTime);
+        }
+        if (endTime != mEndTimeSecs) {
+            mEndTimeSecs = endTime;
+            mEndTimeStr = getTimeString(endTime);
+        }
+        String startTimeStr = mStartTimeStr;
+        String endTimeStr = mEndTimeStr;
 
         float textMargin = 10;
         float endOffset = (float) (mTimecodePaint.measureText(endTimeStr));
@@ -496,30 +594,23 @@ public class WaveformView extends View {
     }
 
     private void drawFlags(Canvas canvas, int width) {
+        if (mFlagPositionsUs == null) {
+            return;
+        }
 
-        double onePixelInSecs = pixelsToSeconds(1);
-        double fractionalSecs = mOffset * onePixelInSecs;
-
-
-        int lastIntegerSecs = (int) fractionalSecs;
-
-        int i = 0;
-        int integerSecs;
-        if (flags != null && !flags.isEmpty()) {
-            while (i < width) {
-                i++;
-                fractionalSecs += onePixelInSecs;
-                integerSecs = (int) fractionalSecs;
-
-                if (integerSecs != lastIntegerSecs && flags.contains(integerSecs)) {
-                    lastIntegerSecs = integerSecs;
-
-                    int offset = mFlagBitMap.getWidth() / 2;
-
-                    canvas.drawBitmap(mFlagBitMap, i - offset, 0, null);
-
-                }
+        // Each flag is placed at its exact position at the current zoom level.
+        double pixelsPerUs = mZoomFactor * mSampleRate
+                / (mSamplesPerFrame * 1000000.0);
+        int offset = mFlagBitMap.getWidth() / 2;
+        for (long positionUs : mFlagPositionsUs) {
+            float x = (float) (positionUs * pixelsPerUs - mOffset);
+            if (x + offset < 0) {
+                continue;
             }
+            if (x - offset > width) {
+                break;  // positions are sorted.
+            }
+            canvas.drawBitmap(mFlagBitMap, x - offset, 0, null);
         }
     }
 
@@ -556,153 +647,6 @@ public class WaveformView extends View {
         canvas.drawRect(x0, y0, x1, y1, mBottomGradientPaint);
     }
 
-    /**
-     * Called once when a new sound file is added
-     */
-    private void computeDoublesForAllZoomLevels() {
-        int numFrames = mSoundFile.getNumFrames();
-        int[] frameGains = mSoundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (double) (
-                    (frameGains[0] / 2.0) +
-                            (frameGains[1] / 2.0));
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (double) (
-                        (frameGains[i - 1] / 3.0) +
-                                (frameGains[i] / 3.0) +
-                                (frameGains[i + 1] / 3.0));
-            }
-            smoothedGains[numFrames - 1] = (double) (
-                    (frameGains[numFrames - 2] / 2.0) +
-                            (frameGains[numFrames - 1] / 2.0));
-        }
-
-        // Make sure the range is no more than 0 - 255
-        double maxGain = 1.0;
-        for (int i = 0; i < numFrames; i++) {
-            if (smoothedGains[i] > maxGain) {
-                maxGain = smoothedGains[i];
-            }
-        }
-        double scaleFactor = 1.0;
-        if (maxGain > 255.0) {
-            scaleFactor = 255 / maxGain;
-        }
-
-        // Build histogram of 256 bins and figure out the new scaled max
-        maxGain = 0;
-        int gainHist[] = new int[256];
-        for (int i = 0; i < numFrames; i++) {
-            int smoothedGain = (int) (smoothedGains[i] * scaleFactor);
-            if (smoothedGain < 0)
-                smoothedGain = 0;
-            if (smoothedGain > 255)
-                smoothedGain = 255;
-
-            if (smoothedGain > maxGain)
-                maxGain = smoothedGain;
-
-            gainHist[smoothedGain]++;
-        }
-
-        // Re-calibrate the min to be 5%
-        double minGain = 0;
-        int sum = 0;
-        while (minGain < 255 && sum < numFrames / 20) {
-            sum += gainHist[(int) minGain];
-            minGain++;
-        }
-
-        // Re-calibrate the max to be 99%
-        sum = 0;
-        while (maxGain > 2 && sum < numFrames / 100) {
-            sum += gainHist[(int) maxGain];
-            maxGain--;
-        }
-
-        // Compute the heights
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
-        }
-
-        mNumZoomLevels = 5;
-        mLenByZoomLevel = new int[5];
-        mZoomFactorByZoomLevel = new double[5];
-        mValuesByZoomLevel = new double[5][];
-
-        // Level 0 is doubled, with interpolated values
-        mLenByZoomLevel[0] = numFrames * 2;
-        mZoomFactorByZoomLevel[0] = 2.0;
-        mValuesByZoomLevel[0] = new double[mLenByZoomLevel[0]];
-        if (numFrames > 0) {
-            mValuesByZoomLevel[0][0] = 0.5 * heights[0];
-            mValuesByZoomLevel[0][1] = heights[0];
-        }
-        for (int i = 1; i < numFrames; i++) {
-            mValuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
-        }
-
-        // Level 1 is normal
-        mLenByZoomLevel[1] = numFrames;
-        mValuesByZoomLevel[1] = new double[mLenByZoomLevel[1]];
-        mZoomFactorByZoomLevel[1] = 1.0;
-        for (int i = 0; i < mLenByZoomLevel[1]; i++) {
-            mValuesByZoomLevel[1][i] = heights[i];
-        }
-
-        // 3 more levels are each halved
-        for (int j = 2; j < 5; j++) {
-            mLenByZoomLevel[j] = mLenByZoomLevel[j - 1] / 2;
-            mValuesByZoomLevel[j] = new double[mLenByZoomLevel[j]];
-            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < mLenByZoomLevel[j]; i++) {
-                mValuesByZoomLevel[j][i] =
-                        0.5 * (mValuesByZoomLevel[j - 1][2 * i] +
-                                mValuesByZoomLevel[j - 1][2 * i + 1]);
-            }
-        }
-
-        if (numFrames > 5000) {
-            mZoomLevel = 3;
-        } else if (numFrames > 1000) {
-            mZoomLevel = 2;
-        } else if (numFrames > 300) {
-            mZoomLevel = 1;
-        } else {
-            mZoomLevel = 0;
-        }
-
-        mInitialized = true;
-    }
-
-
-    /**
-     * Called the first time we need to draw when the zoom level has changed
-     * or the screen is resized
-     */
-    private void computeIntsForThisZoomLevel(int waveMaxHeight) {
-        int halfHeight = (waveMaxHeight / 2) - 1;
-        mHeightsAtThisZoomLevel = new int[mLenByZoomLevel[mZoomLevel]];
-        for (int i = 0; i < mLenByZoomLevel[mZoomLevel]; i++) {
-            mHeightsAtThisZoomLevel[i] =
-                    (int) (mValuesByZoomLevel[mZoomLevel][i] * halfHeight);
-        }
-    }
-
 
     public interface WaveformListener {
         public void waveformTouchStart(float x);
@@ -715,8 +659,7 @@ public class WaveformView extends View {
 
         public void waveformDraw();
 
-        public void waveformZoomIn();
-
-        public void waveformZoomOut();
+        // Called once the view has changed its zoom, and rescaled its positions, by itself.
+        public void waveformZoom();
     }
 }
@@ -0,0 +1,343 @@
+package com.codebox.podcaster.ui.customViews.wave.view;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import com.codebox.podcaster.util.adts.AdtsFrameIndex;
+import com.codebox.podcaster.util.adts.AdtsHeader;
+import com.codebox.podcaster.util.adts.AdtsStreamInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A PcmSource decoding its audio file as it is read, so that playback can start anywhere in the
+ * file at once and memory does not depend on its length.
+ * <p>
+ * The last WINDOW_SECONDS decoded are kept in a ring. A seek within the ring (e.g. replaying
+ * a selection) reuses them, any other seek moves the input to the frame before the position and
+ * decodes from there. ADTS streams with an AdtsFrameIndex are read frame by frame from the file,
+ * the index locating the frame; other files go through a MediaExtractor, whose seekTo() scans
+ * ADTS streams from their start.
+ */
+class WindowedPcmDecoder implements PcmSource {
+    private static final int WINDOW_SECONDS = 2;
+    private static final long TIMEOUT_US = 10000;
+
+    private final MediaExtractor mExtractor;  // null when reading the frames of an ADTS stream.
+    private final AdtsFrameIndex mIndex;
+    private final ByteBuffer mFrames;  // the mapped ADTS stream.
+    private final MediaCodec mCodec;
+    private final boolean mIsAac;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mNumSamples;
+    private final MediaCodec.BufferInfo mInfo;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    private boolean mFirstSampleData;
+    private int mNextFrame;  // next ADTS frame queued.
+    private long mNextFrameOffset;
+    private long mNextFrameSample;
+
+    // Interleaved samples [mRingStart, mRingEnd), sample s being at index s % mRingCapacity.
+    private final ByteBuffer mRing;  // little endian, direct so AudioTrack can read it as is.
+    private final ShortBuffer mRingShorts;
+    private final ByteBuffer mRingView;  // returned by readBytes().
+    private final int mRingCapacity;  // in samples per channel.
+    private boolean mRingValid;       // false until the first output after a seek.
+    private long mRingStart;
+    private long mRingEnd;
+    private long mPosition;  // next sample read.
+
+    static WindowedPcmDecoder open(File file) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(file.getPath());
+        MediaFormat format = null;
+        int track;
+        for (track = 0; track < extractor.getTrackCount(); track++) {
+            format = extractor.getTrackFormat(track);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                break;
+            }
+        }
+        if (track == extractor.getTrackCount()) {
+            extractor.release();
+            throw new IOException("No audio track found in " + file);
+        }
+        extractor.selectTrack(track);
+
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int numSamples = (int) (format.getLong(MediaFormat.KEY_DURATION) * sampleRate / 1000000);
+        try {
+            return new WindowedPcmDecoder(extractor, null, null, format, numSamples);
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+    }
+
+    // index must describe file, an ADTS stream of AAC LC frames.
+    static WindowedPcmDecoder openAdts(File file, AdtsFrameIndex index) throws IOException {
+        AdtsStreamInfo info = index.getInfo();
+        ByteBuffer frames;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            frames = input.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, info.getValidLength());
+        } finally {
+            input.close();
+        }
+
+        // The codec gets the frames without their ADTS header, and their format in csd-0.
+        MediaFormat format = MediaFormat.createAudioFormat(
+                "audio/mp4a-latm", info.getSampleRate(), info.getChannels());
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(AdtsHeader.INSTANCE.audioSpecificConfig(
+                info.getSampleRate(), info.getChannels(), info.getAudioObjectType())));
+        return new WindowedPcmDecoder(null, index, frames, format, (int) info.getSampleCount());
+    }
+
+    private WindowedPcmDecoder(MediaExtractor extractor, AdtsFrameIndex index, ByteBuffer frames,
+                               MediaFormat format, int numSamples) throws IOException {
+        mExtractor = extractor;
+        mIndex = index;
+        mFrames = frames;
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        mIsAac = mimeType.equals("audio/mp4a-latm");
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mNumSamples = numSamples;
+
+        mCodec = MediaCodec.createDecoderByType(mimeType);
+        mCodec.configure(format, null, null, 0);
+        mCodec.start();
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        mInfo = new MediaCodec.BufferInfo();
+        mFirstSampleData = true;
+
+        mRingCapacity = WINDOW_SECONDS * mSampleRate;
+        mRing = ByteBuffer.allocateDirect(mRingCapacity * mChannels * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mRingShorts = mRing.asShortBuffer();
+        mRingView = mRing.duplicate();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return mChannels;
+    }
+
+    @Override
+    public int getNumSamples() {
+        return mNumSamples;
+    }
+
+    @Override
+    public void seek(int sample) {
+        if (mRingValid && sample >= mRingStart && sample <= mRingEnd) {
+            mPosition = sample;
+            return;
+        }
+
+        if (mIndex != null) {
+            // One frame early: the first frame decoded after a flush lacks its overlap.
+            seekToFrame(Math.max(mIndex.frameAtSample(sample) - 1, 0));
+        } else {
+            mExtractor.seekTo((long) sample * 1000000 / mSampleRate,
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        mCodec.flush();
+        mInputDone = false;
+        mOutputDone = false;
+        mRingValid = false;
+        mPosition = sample;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        int numSamples = length / mChannels;
+        int done = 0;
+        while (done < numSamples) {
+            int count = ensureAvailable(numSamples - done);
+            if (count == 0) {
+                break;
+            }
+            int ringIndex = (int) (mPosition % mRingCapacity);
+            mRingShorts.position(ringIndex * mChannels);
+            mRingShorts.get(buffer, offset + done * mChannels, count * mChannels);
+            done += count;
+            mPosition += count;
+        }
+        return done == 0 && mOutputDone ? -1 : done * mChannels;
+    }
+
+    @Override
+    public ByteBuffer readBytes(int maxBytes) {
+        int count = ensureAvailable(maxBytes / (mChannels * 2));
+        if (count == 0) {
+            return null;
+        }
+        int ringIndex = (int) (mPosition % mRingCapacity);
+        mRingView.limit(mRingView.capacity());
+        mRingView.position(ringIndex * mChannels * 2);
+        mRingView.limit(mRingView.position() + count * mChannels * 2);
+        mPosition += count;
+        return mRingView;
+    }
+
+    @Override
+    public void close() {
+        mCodec.stop();
+        mCodec.release();
+        if (mExtractor != null) {
+            mExtractor.release();
+        }
+    }
+
+    private void seekToFrame(int frame) {
+        mNextFrame = frame;
+        mNextFrameOffset = mIndex.frameOffset(frame);
+        mNextFrameSample = mIndex.frameSample(frame);
+    }
+
+    // Decodes until the position is in the ring. Returns the number of samples, at most
+    // maxSamples, which can be read from the ring in one go, 0 at the end of the stream.
+    private int ensureAvailable(int maxSamples) {
+        while (!mRingValid || mPosition >= mRingEnd) {
+            if (!decode()) {
+                return 0;
+            }
+        }
+        int ringIndex = (int) (mPosition % mRingCapacity);
+        return (int) Math.min(Math.min(maxSamples, mRingEnd - mPosition),
+                mRingCapacity - ringIndex);
+    }
+
+    // Decodes until one more chunk is in the ring. Returns false at the end of the stream.
+    private boolean decode() {
+        while (!mOutputDone) {
+            if (!mInputDone) {
+                queueInput();
+            }
+
+            int outputBufferIndex = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+            if (outputBufferIndex >= 0) {
+                boolean decoded = mInfo.size > 0;
+                if (decoded) {
+                    ByteBuffer pcm = mOutputBuffers[outputBufferIndex];
+                    pcm.position(mInfo.offset);
+                    pcm.limit(mInfo.offset + mInfo.size);
+                    append(pcm, mInfo.presentationTimeUs);
+                }
+                mOutputBuffers[outputBufferIndex].clear();
+                mCodec.releaseOutputBuffer(outputBufferIndex, false);
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                        || (mRingValid && mRingEnd >= mNumSamples)) {
+                    // Some decoders never flag the end of stream, see SoundFile.DecodeFile().
+                    mOutputDone = true;
+                }
+                if (decoded) {
+                    return true;
+                }
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            }
+        }
+        return false;
+    }
+
+    private void queueInput() {
+        int inputBufferIndex = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        if (inputBufferIndex < 0) {
+            return;
+        }
+        if (mIndex != null) {
+            queueFrame(inputBufferIndex);
+            return;
+        }
+        int sampleSize = mExtractor.readSampleData(mInputBuffers[inputBufferIndex], 0);
+        if (mFirstSampleData && mIsAac && sampleSize == 2) {
+            // Some devices crash on the first two bytes of an AAC stream, see
+            // SoundFile.DecodeFile(). Skip them and use the buffer for the next sample.
+            mExtractor.advance();
+            sampleSize = mExtractor.readSampleData(mInputBuffers[inputBufferIndex], 0);
+        }
+        mFirstSampleData = false;
+        if (sampleSize < 0) {
+            mCodec.queueInputBuffer(
+                    inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+        } else {
+            mCodec.queueInputBuffer(
+                    inputBufferIndex, 0, sampleSize, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+        }
+    }
+
+    // Queues the payload of the next ADTS frame.
+    private void queueFrame(int inputBufferIndex) {
+        if (mNextFrame >= mIndex.getFrameCount()) {
+            mCodec.queueInputBuffer(
+                    inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+            return;
+        }
+        int offset = (int) mNextFrameOffset;
+        int frameLength = mIndex.frameLength(mNextFrame);
+        int headerLength = AdtsHeader.INSTANCE.headerLength(mFrames, offset);
+        ByteBuffer frame = mFrames.duplicate();
+        frame.limit(offset + frameLength);
+        frame.position(offset + headerLength);
+        ByteBuffer input = mInputBuffers[inputBufferIndex];
+        input.clear();
+        int size = frame.remaining();
+        input.put(frame);
+        mCodec.queueInputBuffer(
+                inputBufferIndex, 0, size, mNextFrameSample * 1000000 / mSampleRate, 0);
+        mNextFrameSample += mIndex.samplesPerFrame(mNextFrame);
+        mNextFrameOffset += frameLength;
+        mNextFrame++;
+    }
+
+    private void append(ByteBuffer pcm, long presentationTimeUs) {
+        if (!mRingValid) {
+            // First chunk since the seek, it starts on or before the position.
+            mRingStart = presentationTimeUs * mSampleRate / 1000000;
+            mRingEnd = mRingStart;
+            mRingValid = true;
+            if (mPosition < mRingStart) {
+                mPosition = mRingStart;
+            }
+        }
+
+        // The decoder outputs native order samples, which is little endian on every device.
+        int frameBytes = mChannels * 2;
+        int numSamples = pcm.remaining() / frameBytes;
+        int end = pcm.limit();
+        while (numSamples > 0) {
+            int ringIndex = (int) (mRingEnd % mRingCapacity);
+            int count = Math.min(numSamples, mRingCapacity - ringIndex);
+            pcm.limit(pcm.position() + count * frameBytes);
+            mRing.position(ringIndex * frameBytes);
+            mRing.put(pcm);
+            pcm.limit(end);
+            mRingEnd += count;
+            numSamples -= count;
+        }
+        mRingStart = Math.max(mRingStart, mRingEnd - mRingCapacity);
+    }
+}
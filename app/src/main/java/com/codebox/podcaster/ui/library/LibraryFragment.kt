@@ -0,0 +1,54 @@
+package com.codebox.podcaster.ui.library
+
+import android.os.Bundle
+import android.view.View
+import android.widget.Toast
+import androidx.fragment.app.Fragment
+import androidx.fragment.app.viewModels
+import androidx.lifecycle.lifecycleScope
+import androidx.navigation.fragment.findNavController
+import com.codebox.podcaster.R
+import com.codebox.podcaster.storage.db.app.segment.SegmentSummary
+import dagger.hilt.android.AndroidEntryPoint
+import kotlinx.android.synthetic.main.fragment_library.*
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.launch
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Lists the saved segments, most recent first, a page at a time.
+ */
+@AndroidEntryPoint
+class LibraryFragment : Fragment(R.layout.fragment_library) {
+
+    private val libraryViewModel: LibraryViewModel by viewModels()
+
+    override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
+        super.onViewCreated(view, savedInstanceState)
+
+        val adapter = SegmentLibraryAdapter { onSegmentClicked(it) }
+        libraryList.adapter = adapter
+
+        viewLifecycleOwner.lifecycleScope.launchWhenStarted {
+            libraryViewModel.segmentLibrary.collectLatest { adapter.submitData(it) }
+        }
+    }
+
+    private fun onSegmentClicked(segmentSummary: SegmentSummary) {
+        viewLifecycleOwner.lifecycleScope.launch {
+            val segmentWithFlags = libraryViewModel.getSegmentWithFlags(segmentSummary.segment.id)
+            if (segmentWithFlags == null) {
+                // No longer saved since its page was loaded.
+                Toast.makeText(requireContext(), R.string.segment_not_found, Toast.LENGTH_SHORT)
+                    .show()
+                return@launch
+            }
+
+            val direction =
+                LibraryFragmentDirections.actionLibraryFragmentToEditingFragment(segmentWithFlags)
+            findNavController().navigate(direction)
+        }
+    }
+
+}
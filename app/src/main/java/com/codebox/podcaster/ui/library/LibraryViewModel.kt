@@ -0,0 +1,33 @@
+package com.codebox.podcaster.ui.library
+
+import androidx.lifecycle.ViewModel
+import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
+import com.codebox.podcaster.repo.SegmentRepository
+import com.codebox.podcaster.storage.db.app.segment.SegmentSummary
+import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
+import dagger.hilt.android.lifecycle.HiltViewModel
+import kotlinx.coroutines.flow.Flow
+import javax.inject.Inject
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+@HiltViewModel
+class LibraryViewModel @Inject constructor(
+    private val segmentRepository: SegmentRepository
+) : ViewModel() {
+
+    // Cached so that the pages loaded survive the view being recreated.
+    val segmentLibrary: Flow<PagingData<SegmentSummary>> =
+        segmentRepository.getSegmentLibrary().cachedIn(viewModelScope)
+
+    /**
+     * The flags of a segment are only loaded when it is opened, the library listing their count.
+     */
+    suspend fun getSegmentWithFlags(segmentId: Long): SegmentWithFlags? {
+        return segmentRepository.getSegmentWithFlags(segmentId)
+    }
+
+}
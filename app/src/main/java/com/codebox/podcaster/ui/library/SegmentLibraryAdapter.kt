@@ -0,0 +1,70 @@
+package com.codebox.podcaster.ui.library
+
+import android.text.format.DateUtils
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.TextView
+import androidx.paging.PagingDataAdapter
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.RecyclerView
+import com.codebox.podcaster.R
+import com.codebox.podcaster.storage.db.app.segment.SegmentSummary
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+class SegmentLibraryAdapter(
+    val listener: (segmentSummary: SegmentSummary) -> Unit
+) :
+    PagingDataAdapter<SegmentSummary, SegmentLibraryAdapter.SegmentSummaryHolder>(DIFF_CALLBACK) {
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): SegmentSummaryHolder {
+        val inflater = LayoutInflater.from(parent.context)
+        return SegmentSummaryHolder(
+            inflater.inflate(R.layout.item_segment_summary, parent, false)
+        )
+    }
+
+    override fun onBindViewHolder(holder: SegmentSummaryHolder, position: Int) {
+        getItem(position)?.let { holder.bind(it) }
+    }
+
+    inner class SegmentSummaryHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
+
+        private val titleTv = itemView.findViewById<TextView>(R.id.title)
+        private val detailsTv = itemView.findViewById<TextView>(R.id.details)
+
+        init {
+            itemView.setOnClickListener {
+                val position = bindingAdapterPosition
+                if (position != RecyclerView.NO_POSITION)
+                    getItem(position)?.let { listener(it) }
+            }
+        }
+
+        fun bind(item: SegmentSummary) {
+            val resources = itemView.resources
+            titleTv.text = item.segment.file.nameWithoutExtension
+            detailsTv.text = resources.getString(
+                R.string.segment_details,
+                DateUtils.formatElapsedTime(item.segment.durationInMillis / 1000),
+                resources.getQuantityString(R.plurals.flag_count, item.flagCount, item.flagCount)
+            )
+        }
+
+    }
+
+    companion object {
+        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<SegmentSummary>() {
+            override fun areItemsTheSame(old: SegmentSummary, new: SegmentSummary): Boolean {
+                return old.segment.id == new.segment.id
+            }
+
+            override fun areContentsTheSame(old: SegmentSummary, new: SegmentSummary): Boolean {
+                return old == new
+            }
+        }
+    }
+
+}
@@ -11,14 +11,21 @@ import androidx.navigation.fragment.navArgs
 import com.codebox.podcaster.R
 import com.codebox.podcaster.player.Player
 import com.codebox.podcaster.storage.db.app.segment.SegmentWithFlags
+import com.codebox.podcaster.ui.customViews.wave.view.PcmSource
 import com.codebox.podcaster.ui.customViews.wave.view.SoundFile
 import com.codebox.podcaster.ui.customViews.wave.view.WaveFormViewManager
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
 import com.codebox.podcaster.ui.main.MainViewModel
+import com.codebox.podcaster.util.adts.AdtsLoudnessEstimator
 import kotlinx.android.synthetic.main.fragment_discover.*
 import kotlinx.android.synthetic.main.fragment_editing.*
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
 
 
 class EditingFragment : Fragment(R.layout.fragment_editing) {
@@ -28,13 +35,22 @@ class EditingFragment : Fragment(R.layout.fragment_editing) {
 
     private val mainViewModel: MainViewModel by activityViewModels()
 
+    private var waveformViewManager: WaveFormViewManager? = null
+
+    private var pcmSourceJob: Job? = null
+
+    companion object {
+        private const val TAG = "EditingFragment"
+    }
+
 
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
         mainViewModel.bottomNavVisibilityData.value = View.GONE
         Log.d("EditingFragment", "**********onViewCreated: ${args.segmentWithFlags.toString()}")
 
-        lifecycleScope.launchWhenCreated { initViews() }
+        // Nothing may touch the views, nor create a WaveFormViewManager, once they are destroyed.
+        viewLifecycleOwner.lifecycleScope.launchWhenCreated { initViews() }
 
 
         //playRecording(args.segmentWithFlags)
@@ -55,11 +71,63 @@ class EditingFragment : Fragment(R.layout.fragment_editing) {
     }
 
     private suspend fun initWaveFormView(){
+        val filePath = args.segmentWithFlags.segment.filePath
+
         progressbar.visibility = View.VISIBLE
-        val soundFile = createSoundFile(args.segmentWithFlags.segment.filePath)
+        val cachedPeaks = loadWaveformPeaks(filePath)
+        if (cachedPeaks != null) {
+            progressbar.visibility = View.GONE
+            showWaveform(filePath, cachedPeaks, cachedPeaks.numFrames)
+            return
+        }
+
+        // Long files take a while to decode. Recorded segments are ADTS, whose waveform can be
+        // estimated from the bitstream at once, otherwise the waveform of what is decoded is shown
+        // meanwhile. Either way the decoded peaks replace it.
+        val estimatedPeaks = estimateWaveformPeaks(filePath)
+        if (estimatedPeaks != null) {
+            progressbar.visibility = View.GONE
+            showWaveform(filePath, estimatedPeaks, estimatedPeaks.numFrames)
+        }
+        // Set once decoded, partial peaks still queued must not replace the decoded ones.
+        val isDecoded = AtomicBoolean(false)
+        // Read here, the view lifecycle cannot be accessed from the decoding thread once the
+        // views are destroyed.
+        val viewScope = viewLifecycleOwner.lifecycleScope
+        val peaksListener = SoundFile.PeaksListener { peaks, expectedNumFrames ->
+            // Called on the decoding thread.
+            viewScope.launchWhenCreated {
+                if (!isDecoded.get())
+                    showWaveform(filePath, peaks, expectedNumFrames)
+            }
+        }
+        val soundFile = createSoundFile(filePath, peaksListener.takeIf { estimatedPeaks == null })
+        isDecoded.set(true)
+        // Until handed over to the manager, releasing it deletes its cache file, which is as
+        // large as the decoded audio.
+        val peaks = try {
+            createWaveformPeaks(filePath, soundFile)
+        } catch (e: CancellationException) {
+            soundFile.release()
+            throw e
+        }
         progressbar.visibility = View.GONE
+        showWaveform(filePath, peaks, peaks.numFrames)
+
+        val waveformViewManager = waveformViewManager
+        if (waveformViewManager == null)
+            soundFile.release()
+        else
+            waveformViewManager.setSoundFile(soundFile)
+    }
+
+    private fun showWaveform(filePath: String, peaks: WaveformPeaks, expectedNumFrames: Int) {
+        waveformViewManager?.let {
+            it.updatePeaks(peaks)
+            return
+        }
 
-        val waveformViewManager = WaveFormViewManager(
+        waveformViewManager = WaveFormViewManager(
             waveformView,
             btnPlayPause,
             startMarker,
@@ -67,21 +135,105 @@ class EditingFragment : Fragment(R.layout.fragment_editing) {
             tvTimer,
             null,
             null,
-            soundFile,
-            resources
-        )
+            peaks,
+            args.segmentWithFlags.flags,
+            resources,
+            expectedNumFrames
+        ) { openForPlayback(filePath) }
 
         waveViewContainer.visibility = View.VISIBLE
+    }
+
+    override fun onDestroyView() {
+        super.onDestroyView()
+        pcmSourceJob?.cancel()
+        pcmSourceJob = null
+        waveformViewManager?.release()
+        waveformViewManager = null
+    }
+
+    /**
+     * The waveform is drawn from the cached peaks, the audio is only decoded once playback needs
+     * it, and then only around the position being played.
+     */
+    private fun openForPlayback(filePath: String) {
+        if (pcmSourceJob?.isActive == true)
+            return
+
+        pcmSourceJob = viewLifecycleOwner.lifecycleScope.launchWhenCreated {
+            val pcmSource = openPcmSource(filePath) ?: return@launchWhenCreated
+            val waveformViewManager = waveformViewManager
+            if (waveformViewManager == null)
+                pcmSource.close()
+            else
+                waveformViewManager.setPcmSource(pcmSource)
+        }
+    }
+
+    private suspend fun openPcmSource(filePath: String): PcmSource? {
+        var pcmSource: PcmSource? = null
+        try {
+            withContext(Dispatchers.IO) {
+                pcmSource = try {
+                    SoundFile.openWindowed(filePath)
+                } catch (e: IOException) {
+                    Log.w(TAG, "openPcmSource: cannot play $filePath", e)
+                    null
+                }
+            }
+        } catch (e: CancellationException) {
+            // The views were destroyed while it was being opened.
+            pcmSource?.close()
+            throw e
+        }
+        return pcmSource
+    }
 
+    private suspend fun loadWaveformPeaks(filePath: String): WaveformPeaks? {
+        return withContext(Dispatchers.IO) { WaveformPeaks.read(File(filePath)) }
+    }
 
+    private suspend fun estimateWaveformPeaks(filePath: String): WaveformPeaks? {
+        return withContext(Dispatchers.IO) {
+            try {
+                AdtsLoudnessEstimator.estimatePeaks(File(filePath))
+            } catch (e: IOException) {
+                Log.w(TAG, "estimateWaveformPeaks: cannot read $filePath", e)
+                null
+            }
+        }
     }
 
-    private suspend fun createSoundFile(filePath: String): SoundFile {
+    private suspend fun createWaveformPeaks(filePath: String, soundFile: SoundFile): WaveformPeaks {
+
+        return withContext(Dispatchers.IO) {
+            val peaks = WaveformPeaks.fromSoundFile(soundFile)
+            try {
+                peaks.write(File(filePath))
+            } catch (e: IOException) {
+                Log.w(TAG, "createWaveformPeaks: could not cache the peaks of $filePath", e)
+            }
+            peaks
+        }
+    }
 
-        return withContext(Dispatchers.IO) soundFile@{
-            val file = SoundFile.create(filePath, null)
-            return@soundFile file
+    private suspend fun createSoundFile(
+        filePath: String,
+        peaksListener: SoundFile.PeaksListener? = null
+    ): SoundFile {
+
+        val cacheDir = requireContext().cacheDir
+        var soundFile: SoundFile? = null
+        try {
+            withContext(Dispatchers.IO) {
+                soundFile = SoundFile.create(filePath, cacheDir, null, peaksListener)
+            }
+        } catch (e: CancellationException) {
+            // The views were destroyed while it was being decoded.
+            soundFile?.release()
+            throw e
         }
+        return soundFile!!
 
     }
 
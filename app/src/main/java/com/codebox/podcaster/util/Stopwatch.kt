@@ -1,5 +1,6 @@
 package com.codebox.podcaster.util
 
+import android.os.SystemClock
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import com.codebox.podcaster.modules.dispatcher.DispatcherModule
@@ -8,6 +9,13 @@ import javax.inject.Inject
 
 /**
  * Created by Codebox on 22/04/21
+ *
+ * Elapsed time is read from the monotonic clock ([SystemClock.elapsedRealtimeNanos]) rather than
+ * accumulated tick by tick, so it does not drift however late the ticks are. Paused time is not
+ * counted and nothing runs while paused.
+ *
+ * [elapsedMillis] can be called at any time. The tick LiveData is only fed every
+ * [tickIntervalMillis], with the elapsed time rounded down to the interval.
  */
 class Stopwatch @Inject constructor(@DispatcherModule.DefaultDispatcher val defaultDispatcher: CoroutineDispatcher) {
 
@@ -15,15 +23,28 @@ class Stopwatch @Inject constructor(@DispatcherModule.DefaultDispatcher val defa
         private const val STARTED = 0
         private const val STOPPED = 1
         private const val PAUSED = 2
+
+        const val DEFAULT_TICK_INTERVAL = 1000L
     }
 
-    private val interval: Long = 1000
+    /**
+     * Interval between two tick LiveData emissions, shorter for sub second display.
+     * 0 disables emission. Takes effect on the next start or resume.
+     */
+    var tickIntervalMillis = DEFAULT_TICK_INTERVAL
 
+    @Volatile
     private var state = STOPPED
 
+    // Elapsed time before the last start or resume.
+    @Volatile
+    private var accumulatedNanos = 0L
+    @Volatile
+    private var runningSinceNanos = 0L
+
     private val tickLiveData = MutableLiveData<Long>()
 
-    private lateinit var watchJob: Job
+    private var watchJob: Job? = null
 
 
     fun start() {
@@ -31,8 +52,8 @@ class Stopwatch @Inject constructor(@DispatcherModule.DefaultDispatcher val defa
         when(state){
 
             STOPPED ->{
-                state = STARTED
-                startWatchJob()
+                accumulatedNanos = 0
+                run()
             }
 
         }
@@ -41,45 +62,66 @@ class Stopwatch @Inject constructor(@DispatcherModule.DefaultDispatcher val defa
     }
 
     fun pause() {
+        if (state != STARTED)
+            return
+        accumulatedNanos += SystemClock.elapsedRealtimeNanos() - runningSinceNanos
         state = PAUSED
+        stopWatchJob()
     }
 
     fun stop() {
+        pause()
         state = STOPPED
-        watchJob.cancel(null)
     }
 
     fun resume() {
-        state = STARTED
+        if (state == PAUSED)
+            run()
+    }
+
+    /**
+     * Time spent started, pauses excluded.
+     */
+    fun elapsedMillis(): Long {
+        var elapsedNanos = accumulatedNanos
+        if (state == STARTED)
+            elapsedNanos += SystemClock.elapsedRealtimeNanos() - runningSinceNanos
+        return elapsedNanos / 1_000_000
     }
 
     fun getTickLiveData(): LiveData<Long> {
         return tickLiveData
     }
 
+    private fun run() {
+        runningSinceNanos = SystemClock.elapsedRealtimeNanos()
+        state = STARTED
+        startWatchJob()
+    }
+
     private fun startWatchJob() {
 
-        //TODO Figure out a way to implement parallel execution without coroutine scope
+        val interval = tickIntervalMillis
+        if (interval <= 0)
+            return
 
         watchJob = CoroutineScope(defaultDispatcher).launch {
 
-            var timeElapsed = 0L
-
-            while (state != STOPPED) {
-
-                if (state != PAUSED){
-                    tickLiveData.postValue(timeElapsed)
-                    timeElapsed += interval
-                }
-
-
-                delay(interval)
-
+            while (isActive) {
+                val elapsed = elapsedMillis()
+                tickLiveData.postValue(elapsed / interval * interval)
 
+                // Wake up on the next multiple of the interval, whatever the lateness of this tick.
+                delay(interval - elapsed % interval)
             }
         }
 
     }
 
+    private fun stopWatchJob() {
+        watchJob?.cancel()
+        watchJob = null
+    }
+
 
-}
\ No newline at end of file
+}
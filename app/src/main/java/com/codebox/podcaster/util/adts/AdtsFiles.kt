@@ -0,0 +1,246 @@
+package com.codebox.podcaster.util.adts
+
+import com.codebox.podcaster.util.mp4.M4aStreamWriter
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Frame accurate operations on ADTS (.aac) files, without decoding nor FFmpeg.
+ */
+object AdtsFiles {
+
+    /**
+     * Walks the frame headers of [file] up to the first invalid or incomplete frame, or the first
+     * frame whose format differs from the previous ones.
+     */
+    fun scan(file: File): AdtsStreamInfo {
+        return FileInputStream(file).use { scan(it.channel) }
+    }
+
+    fun scan(channel: FileChannel): AdtsStreamInfo {
+        return findFrames(channel, 0, Long.MAX_VALUE).info
+    }
+
+    /**
+     * Finds the frames of [channel] overlapping [startUs, endUs), so that they hold every sample of
+     * the range. Only the frame headers are read, the scan stops like [scan] does.
+     *
+     * @param index the index of the stream, if any: the scan then starts at the indexed frame
+     * holding [startUs] instead of the start of the stream.
+     * @param visitor called with every frame of the range, in order.
+     */
+    fun findFrames(
+        channel: FileChannel,
+        startUs: Long,
+        endUs: Long,
+        index: AdtsFrameIndex? = null,
+        visitor: FrameVisitor? = null
+    ): AdtsFrameRange {
+        val size = channel.size()
+        if (size < AdtsHeader.SIZE)
+            return AdtsFrameRange(0, 0, AdtsStreamInfo.EMPTY)
+
+        val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+        var position = 0
+        var sample = 0L
+        if (index != null && !index.isEmpty && index.info.validLength <= size) {
+            val frame = index.frameAtSample(toSamples(startUs, index.info.sampleRate))
+            position = index.frameOffset(frame).toInt()
+            sample = index.frameSample(frame)
+        }
+        val scanStart = position
+        var firstPosition = -1
+        var firstSample = 0L
+        var frameCount = 0
+        var sampleCount = 0L
+        var sampleRate = 0
+        var channels = 0
+        var audioObjectType = 0
+        var startSample = 0L
+        var endSample = 0L
+
+        while (AdtsHeader.isValid(buffer, position)) {
+            val frameLength = AdtsHeader.frameLength(buffer, position)
+            if (position + frameLength > size)
+                break
+
+            if (position == scanStart) {
+                sampleRate = AdtsHeader.sampleRate(buffer, position)
+                channels = AdtsHeader.channels(buffer, position)
+                audioObjectType = AdtsHeader.audioObjectType(buffer, position)
+                startSample = toSamples(startUs, sampleRate)
+                endSample = toSamples(endUs, sampleRate)
+            } else if (sampleRate != AdtsHeader.sampleRate(buffer, position) ||
+                channels != AdtsHeader.channels(buffer, position) ||
+                audioObjectType != AdtsHeader.audioObjectType(buffer, position)
+            ) {
+                break
+            }
+
+            if (sample >= endSample)
+                break
+            val samplesPerFrame = AdtsHeader.samplesPerFrame(buffer, position)
+            if (sample + samplesPerFrame > startSample) {
+                if (firstPosition < 0) {
+                    firstPosition = position
+                    firstSample = sample
+                }
+                sampleCount += samplesPerFrame
+                frameCount++
+                visitor?.visit(frameLength, samplesPerFrame)
+            }
+            sample += samplesPerFrame
+            position += frameLength
+        }
+
+        if (firstPosition < 0)
+            return AdtsFrameRange(position.toLong(), sample, AdtsStreamInfo.EMPTY)
+        return AdtsFrameRange(
+            firstPosition.toLong(),
+            firstSample,
+            AdtsStreamInfo(
+                (position - firstPosition).toLong(), frameCount, sampleCount, sampleRate, channels,
+                audioObjectType
+            )
+        )
+    }
+
+    /**
+     * Receives the frames [findFrames] walks, without boxing their lengths.
+     */
+    fun interface FrameVisitor {
+        fun visit(frameLength: Int, samplesPerFrame: Int)
+    }
+
+    /**
+     * Cuts [file] after its last complete frame, e.g. after the recorder writing it was killed.
+     */
+    fun truncateToCompleteFrames(file: File): AdtsStreamInfo {
+        return RandomAccessFile(file, "rw").use {
+            val info = scan(it.channel)
+            if (it.length() > info.validLength)
+                it.setLength(info.validLength)
+            info
+        }
+    }
+
+    /**
+     * Appends the complete frames of every file to [output], in order, with
+     * [FileChannel.transferTo]: the audio is never copied through the Java heap. Files without any
+     * frame are skipped.
+     *
+     * @return what was appended.
+     * @throws IOException if the files do not share the same format.
+     */
+    fun append(files: List<File>, output: FileChannel): AdtsStreamInfo {
+        var appended = AdtsStreamInfo.EMPTY
+        for (file in files) {
+            FileInputStream(file).use { input ->
+                val info = scan(input.channel)
+                if (info.isEmpty)
+                    return@use
+                if (!appended.isEmpty && !appended.isCompatibleWith(info))
+                    throw IOException("${file.name} does not have the format of the previous files")
+
+                transferFully(input.channel, 0, info.validLength, output)
+                appended += info
+            }
+        }
+        return appended
+    }
+
+    /**
+     * Writes the complete frames of every file to [outputFile], replacing its content.
+     */
+    fun join(files: List<File>, outputFile: File): AdtsStreamInfo {
+        return FileOutputStream(outputFile).use { append(files, it.channel) }
+    }
+
+    /**
+     * Writes the frames of [inputFile] overlapping [startUs, endUs) to [outputFile], an ADTS
+     * stream too: the selected bytes are copied as they are, in O(selection) time when the file
+     * has an up to date [AdtsFrameIndex].
+     *
+     * @return what was written.
+     */
+    @JvmStatic
+    fun trim(inputFile: File, startUs: Long, endUs: Long, outputFile: File): AdtsStreamInfo {
+        return FileInputStream(inputFile).use { input ->
+            val range = findFrames(input.channel, startUs, endUs, AdtsFrameIndex.read(inputFile))
+            FileOutputStream(outputFile).use { output ->
+                transferFully(input.channel, range.offset, range.info.validLength, output.channel)
+            }
+            range.info
+        }
+    }
+
+    /**
+     * Like [trim], but writes an .m4a file: the frames lose their ADTS header and are streamed as is
+     * through an [M4aStreamWriter], nothing is decoded nor encoded, and memory does not depend on
+     * the length of the range.
+     *
+     * @throws IOException if the range holds no frame or if the frames do not fit in the header
+     * MP4Header writes: AAC LC with one raw data block per frame.
+     */
+    @JvmStatic
+    fun trimToM4a(inputFile: File, startUs: Long, endUs: Long, outputFile: File): AdtsStreamInfo {
+        return FileInputStream(inputFile).use { input ->
+            val range = findFrames(input.channel, startUs, endUs, AdtsFrameIndex.read(inputFile))
+            val info = range.info
+            if (info.isEmpty)
+                throw IOException("${inputFile.name} has no frame between $startUs and $endUs us")
+            if (info.audioObjectType != AdtsHeader.AAC_LC ||
+                info.sampleCount != info.frameCount.toLong() * AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK
+            ) {
+                throw IOException("${inputFile.name} cannot be stored in an .m4a file as is")
+            }
+
+            val frames = input.channel.map(FileChannel.MapMode.READ_ONLY, range.offset, info.validLength)
+            val bitrate = (info.validLength * 8 * 1_000_000 / info.durationUs.coerceAtLeast(1)).toInt()
+            val writer = M4aStreamWriter(outputFile, info.sampleRate, info.channels, bitrate)
+            try {
+                // As M4aStreamWriter expects, the first frame is the 2 byte AudioSpecificConfig.
+                writer.writeFrame(
+                    ByteBuffer.wrap(AdtsHeader.audioSpecificConfig(info.sampleRate, info.channels))
+                )
+                var position = 0
+                for (i in 0 until info.frameCount) {
+                    val frameLength = AdtsHeader.frameLength(frames, position)
+                    frames.limit(position + frameLength)
+                    frames.position(position + AdtsHeader.headerLength(frames, position))
+                    writer.writeFrame(frames)
+                    frames.limit(frames.capacity())
+                    position += frameLength
+                }
+                writer.close()
+            } catch (e: Throwable) {
+                writer.abort()
+                throw e
+            }
+            info
+        }
+    }
+
+    private fun toSamples(us: Long, sampleRate: Int): Long {
+        if (us == Long.MAX_VALUE)
+            return Long.MAX_VALUE
+        return us * sampleRate / 1_000_000
+    }
+
+    private fun transferFully(input: FileChannel, offset: Long, length: Long, output: FileChannel) {
+        var position = 0L
+        while (position < length) {
+            val transferred = input.transferTo(offset + position, length - position, output)
+            if (transferred <= 0)
+                throw IOException("Unexpected end of file after ${offset + position} bytes")
+            position += transferred
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.codebox.podcaster.util.adts
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.channels.FileChannel
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * The byte offset and first sample of every frame of an ADTS stream, which has no seek table of
+ * its own: finding the frame of a timestamp takes a binary search instead of a scan of the stream.
+ *
+ * Each frame takes 2 bytes, its length (13 bits) and its number of raw data blocks (2 bits), about
+ * 300KB for two hours at 44.1kHz. Offsets and samples are kept every [CHECKPOINT_INTERVAL] frames
+ * in memory, a frame being at most that many lengths away from a checkpoint.
+ *
+ * An index can be persisted next to its stream (see [getIndexFile]). As with WaveformPeaks, it is
+ * keyed by the size and modification time of the stream and ignored as soon as the stream changes.
+ */
+class AdtsFrameIndex private constructor(
+    val info: AdtsStreamInfo,
+    private val frames: ShortArray
+) {
+
+    private val checkpointOffsets: LongArray
+    private val checkpointSamples: LongArray
+
+    init {
+        val checkpointCount = (frames.size + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL
+        checkpointOffsets = LongArray(checkpointCount)
+        checkpointSamples = LongArray(checkpointCount)
+        var offset = 0L
+        var sample = 0L
+        for (i in frames.indices) {
+            if (i % CHECKPOINT_INTERVAL == 0) {
+                checkpointOffsets[i / CHECKPOINT_INTERVAL] = offset
+                checkpointSamples[i / CHECKPOINT_INTERVAL] = sample
+            }
+            offset += frameLength(i)
+            sample += samplesPerFrame(i)
+        }
+    }
+
+    val frameCount: Int
+        get() = frames.size
+
+    val isEmpty: Boolean
+        get() = frames.isEmpty()
+
+    fun frameLength(frame: Int): Int = frames[frame].toInt() and LENGTH_MASK
+
+    fun samplesPerFrame(frame: Int): Int =
+        ((frames[frame].toInt() ushr LENGTH_BITS) + 1) * AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK
+
+    fun frameOffset(frame: Int): Long {
+        val checkpoint = frame / CHECKPOINT_INTERVAL
+        var offset = checkpointOffsets[checkpoint]
+        for (i in checkpoint * CHECKPOINT_INTERVAL until frame)
+            offset += frameLength(i)
+        return offset
+    }
+
+    /**
+     * Index of the first sample of [frame], per channel, at [AdtsStreamInfo.sampleRate].
+     */
+    fun frameSample(frame: Int): Long {
+        val checkpoint = frame / CHECKPOINT_INTERVAL
+        var sample = checkpointSamples[checkpoint]
+        for (i in checkpoint * CHECKPOINT_INTERVAL until frame)
+            sample += samplesPerFrame(i)
+        return sample
+    }
+
+    /**
+     * @return the frame holding [sample], the first or last frame if it is out of the stream.
+     */
+    fun frameAtSample(sample: Long): Int {
+        if (isEmpty)
+            return 0
+        var checkpoint = checkpointSamples.binarySearch(sample)
+        if (checkpoint < 0)
+            checkpoint = maxOf(-checkpoint - 2, 0)
+
+        var frame = checkpoint * CHECKPOINT_INTERVAL
+        var frameSample = checkpointSamples[checkpoint]
+        while (frame < frames.size - 1 && frameSample + samplesPerFrame(frame) <= sample) {
+            frameSample += samplesPerFrame(frame)
+            frame++
+        }
+        return frame
+    }
+
+    fun frameAtTimeUs(timeUs: Long): Int = frameAtSample(timeUs * info.sampleRate / 1_000_000)
+
+    /**
+     * Persists this index next to [audioFile], which must not change afterwards.
+     */
+    @Throws(IOException::class)
+    fun write(audioFile: File) {
+        val indexFile = getIndexFile(audioFile)
+        val tmpFile = File(indexFile.path + TMP_EXTENSION)
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile))).use { output ->
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+            output.writeLong(audioFile.length())
+            output.writeLong(audioFile.lastModified())
+            output.writeLong(info.validLength)
+            output.writeInt(info.sampleRate)
+            output.writeInt(info.channels)
+            output.writeInt(info.audioObjectType)
+            output.writeInt(frames.size)
+            for (frame in frames)
+                output.writeShort(frame.toInt())
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete()
+            throw IOException("Failed to create $indexFile")
+        }
+    }
+
+    companion object {
+        const val FILE_EXTENSION = ".idx"
+
+        // frames between two checkpoints: up to 64 lengths are added to locate a frame.
+        private const val CHECKPOINT_INTERVAL = 64
+        private const val LENGTH_BITS = 13
+        private const val LENGTH_MASK = (1 shl LENGTH_BITS) - 1
+
+        // About 20s at 44.1kHz, the array doubles as needed while the stream is walked.
+        private const val INITIAL_FRAMES = 1024
+
+        private const val MAGIC = 0x41494458 // "AIDX"
+        private const val VERSION = 1
+        private const val TMP_EXTENSION = ".tmp"
+
+        @JvmStatic
+        fun getIndexFile(audioFile: File) = File(audioFile.path + FILE_EXTENSION)
+
+        /**
+         * Indexes [file] in one sequential pass over its frame headers, with the frames [AdtsFiles.scan]
+         * would find.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun build(file: File): AdtsFrameIndex {
+            return FileInputStream(file).use { build(it.channel) }
+        }
+
+        fun build(channel: FileChannel): AdtsFrameIndex {
+            var frames = ShortArray(INITIAL_FRAMES)
+            var frameCount = 0
+            val range = AdtsFiles.findFrames(channel, 0, Long.MAX_VALUE) { frameLength, samples ->
+                if (frameCount == frames.size)
+                    frames = frames.copyOf(frameCount * 2)
+                val blocks = samples / AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK
+                frames[frameCount++] = (((blocks - 1) shl LENGTH_BITS) or frameLength).toShort()
+            }
+            return AdtsFrameIndex(range.info, frames.copyOf(frameCount))
+        }
+
+        /**
+         * @return the index persisted for [audioFile], or null if there is none or if it does not
+         * match the current content of [audioFile].
+         */
+        @JvmStatic
+        fun read(audioFile: File): AdtsFrameIndex? {
+            val indexFile = getIndexFile(audioFile)
+            if (!indexFile.isFile)
+                return null
+            return try {
+                DataInputStream(BufferedInputStream(FileInputStream(indexFile))).use { input ->
+                    if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                        return@use null
+                    val size = input.readLong()
+                    val lastModified = input.readLong()
+                    if (size != audioFile.length() || lastModified != audioFile.lastModified())
+                        return@use null
+                    val validLength = input.readLong()
+                    val sampleRate = input.readInt()
+                    val channels = input.readInt()
+                    val audioObjectType = input.readInt()
+                    val frameCount = input.readInt()
+                    if (frameCount < 0)
+                        return@use null
+
+                    val frames = ShortArray(frameCount) { input.readShort() }
+                    var sampleCount = 0L
+                    for (i in frames.indices)
+                        sampleCount += ((frames[i].toInt() ushr LENGTH_BITS) + 1) *
+                                AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK
+                    val info = AdtsStreamInfo(
+                        validLength, frameCount, sampleCount, sampleRate, channels, audioObjectType
+                    )
+                    AdtsFrameIndex(info, frames)
+                }
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        /**
+         * @return the persisted index of [audioFile], or a new one which is persisted if possible.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun forFile(audioFile: File): AdtsFrameIndex {
+            read(audioFile)?.let { return it }
+            val index = build(audioFile)
+            try {
+                index.write(audioFile)
+            } catch (e: IOException) {
+                // Built again next time.
+            }
+            return index
+        }
+    }
+}
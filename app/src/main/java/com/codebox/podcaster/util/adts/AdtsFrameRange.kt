@@ -0,0 +1,16 @@
+package com.codebox.podcaster.util.adts
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Consecutive frames of an ADTS stream, see [AdtsFiles.findFrames].
+ *
+ * @param offset position of the first frame in the stream.
+ * @param startSample index of the first sample of the first frame, per channel.
+ * @param info the frames, [AdtsStreamInfo.validLength] being their length in bytes.
+ */
+data class AdtsFrameRange(
+    val offset: Long,
+    val startSample: Long,
+    val info: AdtsStreamInfo
+)
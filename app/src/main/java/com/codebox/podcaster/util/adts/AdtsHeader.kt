@@ -0,0 +1,108 @@
+package com.codebox.podcaster.util.adts
+
+import java.nio.ByteBuffer
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * The 7 byte header preceding every AAC frame of an ADTS stream (.aac files), see ISO/IEC 13818-7.
+ */
+object AdtsHeader {
+
+    const val SIZE = 7
+
+    const val SAMPLES_PER_RAW_DATA_BLOCK = 1024
+
+    const val AAC_LC = 2
+
+    private val SAMPLE_RATES =
+        intArrayOf(96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350)
+
+    fun sampleRateIndex(sampleRate: Int): Int {
+        val index = SAMPLE_RATES.indexOf(sampleRate)
+        require(index >= 0) { "Sample rate $sampleRate is not supported by ADTS" }
+        return index
+    }
+
+    /**
+     * Writes the header of a frame of [frameLength] bytes, header included, without CRC.
+     */
+    fun write(
+        header: ByteArray,
+        frameLength: Int,
+        sampleRate: Int,
+        channels: Int,
+        audioObjectType: Int = AAC_LC
+    ) {
+        val sampleRateIndex = sampleRateIndex(sampleRate)
+
+        header[0] = 0xFF.toByte()
+        header[1] = 0xF1.toByte() // MPEG-4, layer 0, no CRC
+        header[2] = (((audioObjectType - 1) shl 6) or (sampleRateIndex shl 2) or (channels shr 2)).toByte()
+        header[3] = (((channels and 3) shl 6) or (frameLength shr 11)).toByte()
+        header[4] = ((frameLength shr 3) and 0xFF).toByte()
+        header[5] = (((frameLength and 7) shl 5) or 0x1F).toByte()
+        header[6] = 0xFC.toByte() // buffer fullness 0x7FF (VBR), 1 raw data block
+    }
+
+    /**
+     * The 2 byte AudioSpecificConfig (ISO/IEC 14496-3 1.6.2.1) an MP4 container stores instead of
+     * the ADTS headers, e.g. as the first sample of the mdat written by MP4Header.
+     */
+    fun audioSpecificConfig(sampleRate: Int, channels: Int, audioObjectType: Int = AAC_LC): ByteArray {
+        val config = (audioObjectType shl 11) or (sampleRateIndex(sampleRate) shl 7) or (channels shl 3)
+        return byteArrayOf((config shr 8).toByte(), config.toByte())
+    }
+
+    /**
+     * Whether a valid header starts at [position]: sync word, MPEG layer 0, a known sample rate and
+     * a frame length at least as long as the header itself.
+     */
+    fun isValid(buffer: ByteBuffer, position: Int): Boolean {
+        if (position < 0 || position + SIZE > buffer.limit())
+            return false
+        if (byte(buffer, position) != 0xFF || (byte(buffer, position + 1) and 0xF6) != 0xF0)
+            return false
+        if (sampleRateIndexAt(buffer, position) >= SAMPLE_RATES.size)
+            return false
+        return frameLength(buffer, position) >= headerLength(buffer, position)
+    }
+
+    /**
+     * Length of the frame starting at [position], header included.
+     */
+    fun frameLength(buffer: ByteBuffer, position: Int): Int {
+        return ((byte(buffer, position + 3) and 0x03) shl 11) or
+                (byte(buffer, position + 4) shl 3) or
+                (byte(buffer, position + 5) ushr 5)
+    }
+
+    fun headerLength(buffer: ByteBuffer, position: Int): Int {
+        val isProtectionAbsent = (byte(buffer, position + 1) and 0x01) == 1
+        return if (isProtectionAbsent) SIZE else SIZE + 2
+    }
+
+    fun audioObjectType(buffer: ByteBuffer, position: Int): Int =
+        (byte(buffer, position + 2) ushr 6) + 1
+
+    /**
+     * Sample rate of the AAC core. With implicit HE-AAC signalling it is half the output rate, and
+     * each frame then decodes to twice [samplesPerFrame] samples: the duration is the same.
+     */
+    fun sampleRate(buffer: ByteBuffer, position: Int): Int =
+        SAMPLE_RATES[sampleRateIndexAt(buffer, position)]
+
+    fun channels(buffer: ByteBuffer, position: Int): Int =
+        ((byte(buffer, position + 2) and 0x01) shl 2) or (byte(buffer, position + 3) ushr 6)
+
+    /**
+     * Samples per channel in the frame starting at [position], at [sampleRate].
+     */
+    fun samplesPerFrame(buffer: ByteBuffer, position: Int): Int =
+        ((byte(buffer, position + 6) and 0x03) + 1) * SAMPLES_PER_RAW_DATA_BLOCK
+
+    private fun sampleRateIndexAt(buffer: ByteBuffer, position: Int): Int =
+        (byte(buffer, position + 2) ushr 2) and 0x0F
+
+    private fun byte(buffer: ByteBuffer, position: Int): Int = buffer.get(position).toInt() and 0xFF
+}
@@ -0,0 +1,141 @@
+package com.codebox.podcaster.util.adts
+
+import com.codebox.podcaster.ui.customViews.wave.view.WaveformPeaks
+import java.io.File
+import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.pow
+import kotlin.math.sqrt
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * Estimates the loudness of every frame of an ADTS stream from its bitstream, without decoding it.
+ *
+ * The global_gain of the first channel of a frame (ISO/IEC 14496-3 4.4.2.7) is the scalefactor its
+ * spectrum is quantized with: every step of 1 scales the coefficients by 2^(1/4), i.e. 1.5 dB. It
+ * is turned into a gain on the scale of SoundFile's frame gains, sqrt(peak sample), so the result
+ * can be drawn by WaveformView while the file is decoded for the exact peaks. Frames whose payload
+ * is almost empty hold (near) silence, whatever their global_gain.
+ */
+object AdtsLoudnessEstimator {
+
+    private const val ID_SCE = 0
+    private const val ID_CPE = 1
+    private const val ID_LFE = 3
+    private const val EIGHT_SHORT_SEQUENCE = 2
+
+    // Scalefactor of a spectrum of unit coefficients, see the AAC dequantization.
+    private const val SF_OFFSET = 100
+
+    // Peak sample of a frame at SF_OFFSET, about what encoders give moderately loud speech.
+    private const val PEAK_AT_SF_OFFSET = 256.0
+
+    private const val MAX_PEAK = 32767.0
+
+    // Below this many payload bytes per channel a frame is taken for silence.
+    private const val MIN_AUDIBLE_PAYLOAD = 8
+
+    /**
+     * @return the estimated peaks, one frame per ADTS frame, or null if [file] is not an ADTS stream
+     * of AAC LC frames of one raw data block each, as the recorder writes.
+     */
+    fun estimatePeaks(file: File): WaveformPeaks? {
+        return FileInputStream(file).use { input ->
+            val info = AdtsFiles.scan(input.channel)
+            if (info.isEmpty || info.audioObjectType != AdtsHeader.AAC_LC ||
+                info.sampleCount != info.frameCount.toLong() * AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK
+            ) {
+                return@use null
+            }
+
+            val frames = input.channel.map(FileChannel.MapMode.READ_ONLY, 0, info.validLength)
+            val gains = estimateFrameGains(frames, info)
+            WaveformPeaks(info.sampleRate, AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK, gains)
+        }
+    }
+
+    private fun estimateFrameGains(frames: ByteBuffer, info: AdtsStreamInfo): IntArray {
+        val gains = IntArray(info.frameCount)
+        var position = 0
+        var previousGain = 0
+        for (i in 0 until info.frameCount) {
+            val frameLength = AdtsHeader.frameLength(frames, position)
+            val headerLength = AdtsHeader.headerLength(frames, position)
+            val payloadLength = frameLength - headerLength
+            val globalGain = globalGain(frames, position + headerLength, payloadLength)
+            gains[i] = when {
+                payloadLength < MIN_AUDIBLE_PAYLOAD * info.channels -> 0
+                globalGain < 0 -> previousGain // not a channel element first, e.g. a fill element
+                else -> toFrameGain(globalGain)
+            }
+            previousGain = gains[i]
+            position += frameLength
+        }
+        return gains
+    }
+
+    private fun toFrameGain(globalGain: Int): Int {
+        val peak = PEAK_AT_SF_OFFSET * 2.0.pow((globalGain - SF_OFFSET) / 4.0)
+        return sqrt(peak.coerceIn(0.0, MAX_PEAK)).toInt()
+    }
+
+    /**
+     * @return the global_gain of the first channel of the raw data block at [offset], or -1 if the
+     * block does not start with a channel element or is too short.
+     */
+    private fun globalGain(buffer: ByteBuffer, offset: Int, length: Int): Int {
+        val bits = BitReader(buffer, offset, length)
+        val elementId = bits.read(3)
+        bits.skip(4) // element_instance_tag
+        when (elementId) {
+            ID_SCE, ID_LFE -> return bits.read(8)
+            ID_CPE -> {
+                val commonWindow = bits.read(1)
+                if (commonWindow == 1) {
+                    // ics_info, then ms_mask_present, come before the channel streams.
+                    bits.skip(1) // ics_reserved_bit
+                    val windowSequence = bits.read(2)
+                    bits.skip(1) // window_shape
+                    val maxSfb: Int
+                    var windowGroups = 1
+                    if (windowSequence == EIGHT_SHORT_SEQUENCE) {
+                        maxSfb = bits.read(4)
+                        windowGroups += 7 - Integer.bitCount(bits.read(7)) // scale_factor_grouping
+                    } else {
+                        maxSfb = bits.read(6)
+                        if (bits.read(1) == 1) // predictor_data_present, not in AAC LC
+                            return -1
+                    }
+                    if (bits.read(2) == 1) // ms_mask_present: one ms_used bit per band
+                        bits.skip(windowGroups * maxSfb)
+                }
+                return bits.read(8)
+            }
+            else -> return -1
+        }
+    }
+
+    private class BitReader(private val buffer: ByteBuffer, offset: Int, length: Int) {
+        private var position = offset * 8L
+        private val end = (offset + length) * 8L
+
+        fun read(count: Int): Int {
+            if (position + count > end)
+                return -1
+            var value = 0
+            for (i in 0 until count) {
+                val byte = buffer.get((position ushr 3).toInt()).toInt()
+                val bit = (byte ushr (7 - (position and 7).toInt())) and 1
+                value = (value shl 1) or bit
+                position++
+            }
+            return value
+        }
+
+        fun skip(count: Int) {
+            position += count.coerceAtLeast(0)
+        }
+    }
+}
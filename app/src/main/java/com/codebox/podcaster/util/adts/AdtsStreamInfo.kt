@@ -0,0 +1,49 @@
+package com.codebox.podcaster.util.adts
+
+/**
+ * Created by Codebox on 18/10/26
+ *
+ * What a frame by frame scan of an ADTS stream found.
+ *
+ * @param validLength bytes from the start of the stream to the end of its last complete frame.
+ * Anything after it is a partially written frame or garbage.
+ * @param sampleCount samples per channel at [sampleRate].
+ */
+data class AdtsStreamInfo(
+    val validLength: Long,
+    val frameCount: Int,
+    val sampleCount: Long,
+    val sampleRate: Int,
+    val channels: Int,
+    val audioObjectType: Int
+) {
+
+    val durationUs: Long
+        get() = if (sampleRate == 0) 0 else sampleCount * 1_000_000L / sampleRate
+
+    val isEmpty: Boolean
+        get() = frameCount == 0
+
+    /**
+     * Whether frames of both streams can follow each other in a single ADTS stream.
+     */
+    fun isCompatibleWith(other: AdtsStreamInfo): Boolean {
+        return sampleRate == other.sampleRate &&
+                channels == other.channels &&
+                audioObjectType == other.audioObjectType
+    }
+
+    operator fun plus(other: AdtsStreamInfo): AdtsStreamInfo {
+        if (isEmpty)
+            return other.copy(validLength = validLength + other.validLength)
+        return copy(
+            validLength = validLength + other.validLength,
+            frameCount = frameCount + other.frameCount,
+            sampleCount = sampleCount + other.sampleCount
+        )
+    }
+
+    companion object {
+        val EMPTY = AdtsStreamInfo(0, 0, 0, 0, 0, 0)
+    }
+}
@@ -0,0 +1,138 @@
+package com.codebox.podcaster.util.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes an .m4a file as its AAC frames are produced, e.g. by an encoder, whatever its length.
+ * <p>
+ * MP4Header needs the size of every frame, which is only known at the end. So the file is laid
+ * out as 'ftyp', 'mdat', 'moov': the frames are streamed into 'mdat' through a small buffer, then
+ * close() appends the 'moov' atom and patches the size of 'mdat'. Only the frame sizes are kept in
+ * memory, 4 bytes per frame (about 1.2MB for two hours at 44.1kHz).
+ * <p>
+ * As with MP4Header, the first frame must be the 2 bytes AudioSpecificConfig (the codec config
+ * output by MediaCodec AAC encoders).
+ * <p>
+ * A writer whose frames could not all be produced must be aborted rather than closed, so that no
+ * truncated but playable file is left behind.
+ */
+public class M4aStreamWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mOutputFile;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mBitrate;
+    private final ByteBuffer mBuffer;  // frames not written yet.
+    private final long mMdatOffset;
+    private int[] mFrameSizes;
+    private int mNumFrames;
+    private long mMdatSize;  // size of the frames written so far.
+    private boolean mClosed;
+
+    public M4aStreamWriter(File outputFile, int sampleRate, int numChannels, int bitrate)
+            throws IOException {
+        mOutputFile = outputFile;
+        mFile = new RandomAccessFile(outputFile, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mSampleRate = sampleRate;
+        mChannels = numChannels;
+        mBitrate = bitrate;
+        mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        mFrameSizes = new int[1024];
+
+        mBuffer.put(MP4Header.getFTYPBytes());
+        mMdatOffset = mBuffer.position();
+        // 'mdat' atom header, its size is set by close().
+        mBuffer.put(new byte[] {0, 0, 0, 0, 'm', 'd', 'a', 't'});
+    }
+
+    /**
+     * Appends the frame between frame.position() and frame.limit(), consuming it.
+     */
+    public void writeFrame(ByteBuffer frame) throws IOException {
+        int size = frame.remaining();
+        if (mNumFrames == mFrameSizes.length) {
+            mFrameSizes = Arrays.copyOf(mFrameSizes, mFrameSizes.length * 2);
+        }
+        mFrameSizes[mNumFrames++] = size;
+        mMdatSize += size;
+
+        if (size > mBuffer.remaining()) {
+            flush();
+        }
+        if (size > mBuffer.remaining()) {
+            writeFully(frame);
+        } else {
+            mBuffer.put(frame);
+        }
+    }
+
+    /**
+     * Writes the 'moov' atom and closes the file. The file is only playable afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            flush();
+            long chunkOffset = mMdatOffset + 8;
+            if (chunkOffset + mMdatSize > Integer.MAX_VALUE) {
+                throw new IOException("The AAC stream is too large for an .m4a file");
+            }
+            byte[] moov = MP4Header.getMOOVBytes(mSampleRate, mChannels,
+                    Arrays.copyOf(mFrameSizes, mNumFrames), mBitrate, (int) chunkOffset);
+            if (moov == null) {
+                throw new IOException("Invalid AAC stream: " + mNumFrames + " frames");
+            }
+            writeFully(ByteBuffer.wrap(moov));
+
+            int size = (int) (8 + mMdatSize);
+            ByteBuffer mdatSize = ByteBuffer.allocate(4).putInt(0, size);
+            while (mdatSize.hasRemaining()) {
+                mChannel.write(mdatSize, mMdatOffset + mdatSize.position());
+            }
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Closes the file without its 'moov' atom and deletes it. Can be called after close() failed.
+     */
+    public void abort() {
+        if (!mClosed) {
+            mClosed = true;
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // The file is deleted anyway.
+            }
+        }
+        mOutputFile.delete();
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        writeFully(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+}
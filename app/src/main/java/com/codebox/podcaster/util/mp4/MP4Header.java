@@ -14,7 +14,7 @@
  * limitations under the License.
  */
 
-package com.codebox.podcaster.ui.customViews.wave.view;
+package com.codebox.podcaster.util.mp4;
 
 class Atom {  // note: latest versions of spec simply call it 'box' instead of 'atom'.
     private int mSize;  // includes atom header (8 bytes)
@@ -232,18 +232,19 @@ public class MP4Header {
         mTime[2] = (byte)((time >> 8) & 0xFF);
         mTime[3] = (byte)(time & 0xFF);
         int numSamples = 1024 * (frame_size.length - 1);  // 1st frame does not contain samples.
-        int durationMS = (numSamples * 1000) / mSampleRate;
-        if ((numSamples * 1000) % mSampleRate > 0) {  // round the duration up.
+        // long: the product overflows after 35 minutes at 44.1kHz.
+        int durationMS = (int) (((long) numSamples * 1000) / mSampleRate);
+        if (((long) numSamples * 1000) % mSampleRate > 0) {  // round the duration up.
             durationMS++;
         }
         mNumSamples= new byte[] {
-                (byte)((numSamples >> 26) & 0XFF),
+                (byte)((numSamples >> 24) & 0XFF),
                 (byte)((numSamples >> 16) & 0XFF),
                 (byte)((numSamples >> 8) & 0XFF),
                 (byte)(numSamples & 0XFF)
         };
         mDurationMS = new byte[] {
-                (byte)((durationMS >> 26) & 0XFF),
+                (byte)((durationMS >> 24) & 0XFF),
                 (byte)((durationMS >> 16) & 0XFF),
                 (byte)((durationMS >> 8) & 0XFF),
                 (byte)(durationMS & 0XFF)
@@ -260,6 +261,25 @@ public class MP4Header {
         return new MP4Header(sampleRate, numChannels, frame_size, bitrate).mHeader;
     }
 
+    // Returns the 'ftyp' atom starting a file whose 'moov' atom follows the AAC stream. The 'mdat'
+    // atom goes right after it.
+    public static byte[] getFTYPBytes() {
+        return getFTYPAtom().getBytes();
+    }
+
+    // Returns the 'moov' atom of a file whose AAC stream starts at chunkOffset, for files where it
+    // is written after the stream (see M4aStreamWriter).
+    public static byte[] getMOOVBytes(int sampleRate, int numChannels, int[] frame_size,
+                                      int bitrate, int chunkOffset) {
+        MP4Header header = new MP4Header(sampleRate, numChannels, frame_size, bitrate);
+        if (header.mHeader == null) {
+            return null;
+        }
+        Atom a_moov = header.getMOOVAtom();
+        setChunkOffset(a_moov, chunkOffset);
+        return a_moov.getBytes();
+    }
+
     public String toString() {
         String str = "";
         if (mHeader == null) {
@@ -291,22 +311,15 @@ public class MP4Header {
                                          // immediately after. The correct size will be set later.
 
         // set the correct chunk offset in the stco atom.
-        Atom a_stco = a_moov.getChild("trak.mdia.minf.stbl.stco");
-        if (a_stco == null) {
+        int chunk_offset = a_ftyp.getSize() + a_moov.getSize() + a_mdat.getSize();
+        if (!setChunkOffset(a_moov, chunk_offset)) {
             mHeader = null;
             return;
         }
-        byte[] data = a_stco.getData();
-        int chunk_offset = a_ftyp.getSize() + a_moov.getSize() + a_mdat.getSize();
-        int offset = data.length - 4;  // here stco should contain only one chunk offset.
-        data[offset++] = (byte)((chunk_offset >> 24) & 0xFF);
-        data[offset++] = (byte)((chunk_offset >> 16) & 0xFF);
-        data[offset++] = (byte)((chunk_offset >> 8) & 0xFF);
-        data[offset++] = (byte)(chunk_offset & 0xFF);
 
         // create the header byte array based on the previous atoms.
         byte[] header = new byte[chunk_offset];  // here chunk_offset is also the size of the header
-        offset = 0;
+        int offset = 0;
         for (Atom atom : new Atom[] {a_ftyp, a_moov, a_mdat}) {
             byte[] atom_bytes = atom.getBytes();
             System.arraycopy(atom_bytes, 0, header, offset, atom_bytes.length);
@@ -324,7 +337,22 @@ public class MP4Header {
         mHeader = header;
     }
 
-    private Atom getFTYPAtom() {
+    // set the chunk offset in the stco atom of a_moov. Return false if there is no such atom.
+    private static boolean setChunkOffset(Atom a_moov, int chunk_offset) {
+        Atom a_stco = a_moov.getChild("trak.mdia.minf.stbl.stco");
+        if (a_stco == null) {
+            return false;
+        }
+        byte[] data = a_stco.getData();
+        int offset = data.length - 4;  // here stco should contain only one chunk offset.
+        data[offset++] = (byte)((chunk_offset >> 24) & 0xFF);
+        data[offset++] = (byte)((chunk_offset >> 16) & 0xFF);
+        data[offset++] = (byte)((chunk_offset >> 8) & 0xFF);
+        data[offset++] = (byte)(chunk_offset & 0xFF);
+        return true;
+    }
+
+    private static Atom getFTYPAtom() {
         Atom atom = new Atom("ftyp");
         atom.setData(new byte[] {
                 'M', '4', 'A', ' ',  // Major brand
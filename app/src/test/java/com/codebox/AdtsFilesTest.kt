@@ -0,0 +1,144 @@
+package com.codebox
+
+import com.codebox.podcaster.util.adts.AdtsFiles
+import com.codebox.podcaster.util.adts.AdtsHeader
+import com.codebox.podcaster.util.mp4.MP4Header
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+class AdtsFilesTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private lateinit var outputFile: File
+
+    @Before
+    fun setup() {
+        outputFile = temporaryFolder.newFile("Segment.aac")
+    }
+
+    @Test
+    fun scan_CountsFramesAndSamples() {
+        val file = writeFile("a.aac", frames(3, 44100, 100))
+
+        val info = AdtsFiles.scan(file)
+
+        assertEquals(3, info.frameCount)
+        assertEquals(3L * AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK, info.sampleCount)
+        assertEquals(file.length(), info.validLength)
+        assertEquals(44100, info.sampleRate)
+        assertEquals(1, info.channels)
+        assertEquals(AdtsHeader.AAC_LC, info.audioObjectType)
+    }
+
+    @Test
+    fun scan_IgnoresTrailingPartialFrame() {
+        val complete = frames(2, 44100, 100)
+        val file = writeFile("a.aac", complete + frames(1, 44100, 100).copyOf(50))
+
+        val info = AdtsFiles.scan(file)
+
+        assertEquals(2, info.frameCount)
+        assertEquals(complete.size.toLong(), info.validLength)
+    }
+
+    @Test
+    fun join_AppendsCompleteFramesOnly() {
+        val first = frames(2, 44100, 100)
+        val second = frames(3, 44100, 60)
+        val a = writeFile("a.aac", first + byteArrayOf(1, 2, 3))
+        val b = writeFile("b.aac", second)
+        val empty = writeFile("c.aac", ByteArray(0))
+
+        val info = AdtsFiles.join(listOf(a, empty, b), outputFile)
+
+        assertEquals(5, info.frameCount)
+        assertArrayEquals(first + second, outputFile.readBytes())
+    }
+
+    @Test(expected = IOException::class)
+    fun join_DifferentSampleRates_throwException() {
+        val a = writeFile("a.aac", frames(1, 44100, 100))
+        val b = writeFile("b.aac", frames(1, 48000, 100))
+
+        AdtsFiles.join(listOf(a, b), outputFile)
+    }
+
+    @Test
+    fun trim_CopiesFramesOverlappingTheRange() {
+        // 1024 samples at 44100 Hz: frames start at 0, 23.2, 46.4 and 69.7 ms.
+        val sizes = intArrayOf(10, 20, 30, 40)
+        val file = writeFile("a.aac", sizes.map { frames(1, 44100, it) }.reduce { a, b -> a + b })
+
+        val info = AdtsFiles.trim(file, 30_000, 60_000, outputFile)
+
+        assertEquals(2, info.frameCount)
+        assertArrayEquals(frames(1, 44100, 20) + frames(1, 44100, 30), outputFile.readBytes())
+    }
+
+    @Test
+    fun trimToM4a_StoresPayloadsAfterTheHeader() {
+        val payloads = listOf(ByteArray(10) { (it + 1).toByte() }, ByteArray(20) { (-it).toByte() })
+        val file = writeFile("a.aac", payloads.map { frame(it) }.reduce { a, b -> a + b })
+        val m4a = temporaryFolder.newFile("a.m4a")
+
+        val info = AdtsFiles.trimToM4a(file, 0, Long.MAX_VALUE, m4a)
+
+        val header = MP4Header.getMP4Header(44100, 1, intArrayOf(2, 10, 20), 0)
+        assertEquals(2, info.frameCount)
+        assertEquals(header.size + 2L + 10 + 20, m4a.length())
+
+        // ftyp, then mdat: the AudioSpecificConfig and the payloads, then moov.
+        val bytes = ByteBuffer.wrap(m4a.readBytes())
+        val mdatOffset = MP4Header.getFTYPBytes().size
+        assertEquals(8 + 2 + 10 + 20, bytes.getInt(mdatOffset))
+        assertEquals("mdat", String(bytes.array(), mdatOffset + 4, 4, Charsets.US_ASCII))
+        val payloadOffset = mdatOffset + 8 + 2
+        assertArrayEquals(
+            payloads[0] + payloads[1],
+            bytes.array().copyOfRange(payloadOffset, payloadOffset + 30)
+        )
+
+        // The single chunk offset of stco points at the AudioSpecificConfig.
+        val stco = String(bytes.array(), Charsets.ISO_8859_1).indexOf("stco") - 4
+        assertEquals(mdatOffset + 8, bytes.getInt(stco + bytes.getInt(stco) - 4))
+    }
+
+    @Test(expected = IOException::class)
+    fun trimToM4a_EmptyRange_throwException() {
+        val file = writeFile("a.aac", frames(2, 44100, 10))
+
+        AdtsFiles.trimToM4a(file, 1_000_000, 2_000_000, temporaryFolder.newFile("a.m4a"))
+    }
+
+    private fun frames(count: Int, sampleRate: Int, payloadSize: Int): ByteArray {
+        val frameLength = AdtsHeader.SIZE + payloadSize
+        val bytes = ByteArray(count * frameLength)
+        val header = ByteArray(AdtsHeader.SIZE)
+        AdtsHeader.write(header, frameLength, sampleRate, 1)
+        for (i in 0 until count)
+            header.copyInto(bytes, i * frameLength)
+        return bytes
+    }
+
+    private fun frame(payload: ByteArray): ByteArray {
+        val header = ByteArray(AdtsHeader.SIZE)
+        AdtsHeader.write(header, AdtsHeader.SIZE + payload.size, 44100, 1)
+        return header + payload
+    }
+
+    private fun writeFile(name: String, bytes: ByteArray): File {
+        return temporaryFolder.newFile(name).apply { writeBytes(bytes) }
+    }
+}
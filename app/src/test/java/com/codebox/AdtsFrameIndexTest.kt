@@ -0,0 +1,82 @@
+package com.codebox
+
+import com.codebox.podcaster.util.adts.AdtsFrameIndex
+import com.codebox.podcaster.util.adts.AdtsHeader
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+class AdtsFrameIndexTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    @Test
+    fun build_LocatesEveryFrame() {
+        val lengths = List(200) { 20 + it % 7 }
+        val file = writeFile(lengths)
+
+        val index = AdtsFrameIndex.build(file)
+
+        assertEquals(200, index.frameCount)
+        assertEquals(lengths.sum().toLong(), index.info.validLength)
+        assertEquals(lengths.take(150).sum().toLong(), index.frameOffset(150))
+        assertEquals(150L * SAMPLES, index.frameSample(150))
+        assertEquals(lengths[150], index.frameLength(150))
+    }
+
+    @Test
+    fun frameAtSample_FindsTheFrameHoldingTheSample() {
+        val index = AdtsFrameIndex.build(writeFile(List(200) { 20 }))
+
+        assertEquals(0, index.frameAtSample(0))
+        assertEquals(129, index.frameAtSample(129L * SAMPLES + SAMPLES - 1))
+        assertEquals(130, index.frameAtSample(130L * SAMPLES))
+        assertEquals(199, index.frameAtSample(1_000_000))
+    }
+
+    @Test
+    fun read_ReturnsTheWrittenIndex() {
+        val file = writeFile(List(100) { 20 + it % 3 })
+        AdtsFrameIndex.build(file).write(file)
+
+        val index = AdtsFrameIndex.read(file)
+
+        assertNotNull(index)
+        assertEquals(AdtsFrameIndex.build(file).info, index!!.info)
+        assertEquals(AdtsFrameIndex.build(file).frameOffset(99), index.frameOffset(99))
+    }
+
+    @Test
+    fun read_AudioFileChanged_returnNull() {
+        val file = writeFile(List(100) { 20 })
+        AdtsFrameIndex.build(file).write(file)
+
+        file.appendBytes(frame(20))
+
+        assertNull(AdtsFrameIndex.read(file))
+    }
+
+    private fun frame(frameLength: Int): ByteArray {
+        val bytes = ByteArray(frameLength)
+        AdtsHeader.write(bytes, frameLength, 44100, 1)
+        return bytes
+    }
+
+    private fun writeFile(frameLengths: List<Int>): File {
+        val file = temporaryFolder.newFile("a.aac")
+        file.writeBytes(frameLengths.fold(ByteArray(0)) { bytes, length -> bytes + frame(length) })
+        return file
+    }
+
+    companion object {
+        private const val SAMPLES = AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK
+    }
+}
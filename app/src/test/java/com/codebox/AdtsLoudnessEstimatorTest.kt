@@ -0,0 +1,63 @@
+package com.codebox
+
+import com.codebox.podcaster.util.adts.AdtsHeader
+import com.codebox.podcaster.util.adts.AdtsLoudnessEstimator
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+class AdtsLoudnessEstimatorTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    @Test
+    fun estimatePeaks_FollowsTheGlobalGain() {
+        val file = writeFile(frame(100) + frame(120) + frame(140))
+
+        val peaks = AdtsLoudnessEstimator.estimatePeaks(file)!!
+
+        val gains = peaks.frameGains
+        assertEquals(3, peaks.numFrames)
+        assertEquals(44100, peaks.sampleRate)
+        assertEquals(AdtsHeader.SAMPLES_PER_RAW_DATA_BLOCK, peaks.samplesPerFrame)
+        assertTrue(gains[0] < gains[1] && gains[1] < gains[2])
+    }
+
+    @Test
+    fun estimatePeaks_AlmostEmptyFrame_isSilent() {
+        val file = writeFile(frame(140) + frame(140, payloadSize = 3))
+
+        val gains = AdtsLoudnessEstimator.estimatePeaks(file)!!.frameGains
+
+        assertTrue(gains[0] > 0)
+        assertEquals(0, gains[1])
+    }
+
+    @Test
+    fun estimatePeaks_NotAdts_returnNull() {
+        assertNull(AdtsLoudnessEstimator.estimatePeaks(writeFile(ByteArray(100))))
+    }
+
+    // A mono frame whose raw data block starts with a single channel element.
+    private fun frame(globalGain: Int, payloadSize: Int = 20): ByteArray {
+        val frameLength = AdtsHeader.SIZE + payloadSize
+        val bytes = ByteArray(frameLength)
+        AdtsHeader.write(bytes, frameLength, 44100, 1)
+        // id_syn_ele (3 bits) = SCE, element_instance_tag (4 bits) = 0, then global_gain.
+        bytes[AdtsHeader.SIZE] = (globalGain shr 7).toByte()
+        bytes[AdtsHeader.SIZE + 1] = (globalGain shl 1).toByte()
+        return bytes
+    }
+
+    private fun writeFile(bytes: ByteArray): File {
+        return temporaryFolder.newFile("a.aac").apply { writeBytes(bytes) }
+    }
+}
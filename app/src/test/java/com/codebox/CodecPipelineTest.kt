@@ -0,0 +1,162 @@
+package com.codebox
+
+import com.codebox.podcaster.ui.customViews.wave.view.CodecPipeline
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Created by Codebox on 18/10/26
+ */
+class CodecPipelineTest {
+
+    @Test
+    fun run_PassesEveryInputThroughTheCodec() {
+        val codec = FakeCodec()
+        val sink = CollectingSink()
+
+        CodecPipeline.run(codec, ChunkSource("hello world".toByteArray(), 3), sink)
+
+        assertArrayEquals("HELLO WORLD".toByteArray(), sink.bytes.toByteArray())
+        assertEquals(listOf(0L, 1L, 2L, 3L), sink.presentationTimesUs)
+        assertEquals(5, codec.releasedOutputs) // 4 chunks and the end of stream
+        assertTrue(codec.released)
+    }
+
+    @Test
+    fun run_SinkReturnsFalse_stopsEarly() {
+        val sink = CollectingSink(maxChunks = 2)
+
+        CodecPipeline.run(FakeCodec(), ChunkSource("hello world".toByteArray(), 3), sink)
+
+        assertArrayEquals("HELLO ".toByteArray(), sink.bytes.toByteArray())
+    }
+
+    @Test
+    fun run_SourceStops_endsWithoutEndOfStream() {
+        val codec = FakeCodec()
+        val source = object : CodecPipeline.Source {
+            override fun read(buffer: ByteBuffer) = CodecPipeline.STOP
+            override fun getPresentationTimeUs() = 0L
+        }
+
+        CodecPipeline.run(codec, source, CollectingSink())
+
+        assertEquals(0, codec.releasedOutputs)
+        assertTrue(codec.released)
+    }
+
+    @Test(expected = IOException::class)
+    fun run_SinkThrows_throwException() {
+        val sink = object : CodecPipeline.Sink {
+            override fun write(output: ByteBuffer, presentationTimeUs: Long, flags: Int): Boolean {
+                throw IOException("Disk full")
+            }
+        }
+
+        CodecPipeline.run(FakeCodec(), ChunkSource("hello".toByteArray(), 3), sink)
+    }
+
+    @Test(expected = IOException::class)
+    fun run_CodecError_throwException() {
+        CodecPipeline.run(FakeCodec(failAfter = 1), ChunkSource("hello".toByteArray(), 3), CollectingSink())
+    }
+
+    /**
+     * Upper cases its input, one buffer at a time, on a thread of its own like MediaCodec does.
+     */
+    private class FakeCodec(private val failAfter: Int = Int.MAX_VALUE) : CodecPipeline.Codec {
+        private val input = ByteBuffer.allocate(16)
+        private val output = ByteBuffer.allocate(16)
+        private var queuedSize = -1
+        private var queuedTimeUs = 0L
+        private var queuedFlags = 0
+        private lateinit var thread: Thread
+
+        @Volatile
+        var releasedOutputs = 0
+
+        @Volatile
+        var released = false
+
+        override fun start(callback: CodecPipeline.Callback) {
+            thread = Thread { process(callback) }
+            thread.start()
+        }
+
+        private fun process(callback: CodecPipeline.Callback) {
+            var count = 0
+            while (!released) {
+                if (count++ == failAfter) {
+                    callback.onError(IllegalStateException("Codec crashed"))
+                    return
+                }
+                queuedSize = -1
+                callback.onInputBufferAvailable(0)
+                if (queuedSize < 0)
+                    return
+
+                output.clear()
+                for (i in 0 until queuedSize)
+                    output.put(input.get(i).toChar().toUpperCase().toByte())
+                callback.onOutputBufferAvailable(0, 0, queuedSize, queuedTimeUs, queuedFlags)
+                if (queuedFlags and CodecPipeline.FLAG_END_OF_STREAM != 0)
+                    return
+            }
+        }
+
+        override fun getInputBuffer(index: Int): ByteBuffer = input
+
+        override fun getOutputBuffer(index: Int): ByteBuffer = output
+
+        override fun queueInputBuffer(index: Int, size: Int, presentationTimeUs: Long, flags: Int) {
+            queuedSize = size
+            queuedTimeUs = presentationTimeUs
+            queuedFlags = flags
+        }
+
+        override fun releaseOutputBuffer(index: Int) {
+            releasedOutputs++
+        }
+
+        override fun release() {
+            released = true
+            thread.join()
+        }
+    }
+
+    private class ChunkSource(private val bytes: ByteArray, private val chunkSize: Int) :
+        CodecPipeline.Source {
+        private var position = 0
+        private var chunk = -1L
+
+        override fun read(buffer: ByteBuffer): Int {
+            if (position == bytes.size)
+                return CodecPipeline.END_OF_STREAM
+            val size = minOf(chunkSize, bytes.size - position)
+            buffer.put(bytes, position, size)
+            position += size
+            chunk++
+            return size
+        }
+
+        override fun getPresentationTimeUs() = chunk
+    }
+
+    private class CollectingSink(private val maxChunks: Int = Int.MAX_VALUE) : CodecPipeline.Sink {
+        val bytes = ByteArrayOutputStream()
+        val presentationTimesUs = mutableListOf<Long>()
+
+        override fun write(output: ByteBuffer, presentationTimeUs: Long, flags: Int): Boolean {
+            val chunk = ByteArray(output.remaining())
+            output.get(chunk)
+            bytes.write(chunk)
+            presentationTimesUs += presentationTimeUs
+            return presentationTimesUs.size < maxChunks
+        }
+    }
+}
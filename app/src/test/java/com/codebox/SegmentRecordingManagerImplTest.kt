@@ -1,19 +1,36 @@
 package com.codebox
 
+import com.codebox.podcaster.recorder.base.PausableRecorder
+import com.codebox.podcaster.recorder.base.Recorder
+import com.codebox.podcaster.recorder.segmentrecorder.RecordingRecovery
+import com.codebox.podcaster.recorder.segmentrecorder.SegmentAssembler
 import com.codebox.podcaster.recorder.segmentrecorder.SegmentRecordingManagerImpl
 import com.codebox.podcaster.recorder.segmentrecorder.base.SegmentRecorder
 import com.codebox.podcaster.recorder.segmentrecorder.base.SegmentRecordingManager
 import com.codebox.podcaster.repo.SegmentRepository
+import com.codebox.podcaster.storage.db.app.journal.JournalDao
+import com.codebox.podcaster.storage.db.app.journal.RecordingJournal
 import com.codebox.podcaster.storage.disk.segmentstorage.SegmentDiskStorage
+import com.codebox.podcaster.util.Stopwatch
+import com.codebox.podcaster.storage.db.app.segment.Segment
 import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argumentCaptor
 import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
 import com.nhaarman.mockitokotlin2.verify
 import com.nhaarman.mockitokotlin2.whenever
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
 import org.junit.Before
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
 import java.io.File
 
 /**
@@ -21,10 +38,15 @@ import java.io.File
  */
 class SegmentRecordingManagerImplTest {
 
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
     private lateinit var storage: SegmentDiskStorage
     private lateinit var repo: SegmentRepository
     private lateinit var manager: SegmentRecordingManagerImpl
     private lateinit var recorder: SegmentRecorder
+    private lateinit var stopwatch: Stopwatch
+    private lateinit var journal: RecordingJournal
 
 
     @Before
@@ -33,6 +55,9 @@ class SegmentRecordingManagerImplTest {
         storage = mock()
         recorder = mock()
         repo = mock()
+        stopwatch = mock()
+        journal = RecordingJournal(mock<JournalDao>())
+        runBlocking { whenever(recorder.startRecording()).thenReturn(true) }
 
         manager = SegmentRecordingManagerImpl(repo, recorder)
 
@@ -40,22 +65,27 @@ class SegmentRecordingManagerImplTest {
 
     private fun SegmentRecordingManagerImpl(
         repository: SegmentRepository,
-        recorder: SegmentRecorder
+        recorder: Recorder
     ): SegmentRecordingManagerImpl {
-        TODO("Not yet implemented")
+        val assembler = SegmentAssembler(repository, journal, Dispatchers.Unconfined)
+        return SegmentRecordingManagerImpl(
+            repository, recorder, stopwatch, assembler, journal, mock<RecordingRecovery>()
+        )
     }
 
 
+    @ExperimentalCoroutinesApi
     @Test
-    suspend fun startRecording_StartsRecorder() {
-        //manager.startRecording()
+    fun startRecording_StartsRecorder() = runBlockingTest {
+        manager.startRecording()
 
         verify(recorder).startRecording()
     }
 
+    @ExperimentalCoroutinesApi
     @Test(expected = SegmentRecordingManager.IllegalOperationException::class)
-    fun addFlag_WithoutStartRecording_throwException() {
-        //manager.addFlag()
+    fun addFlag_WithoutStartRecording_throwException() = runBlockingTest {
+        manager.addFlag()
     }
 
     @ExperimentalCoroutinesApi
@@ -66,6 +96,17 @@ class SegmentRecordingManagerImplTest {
         verify(recorder).stopRecording()
     }
 
+    @ExperimentalCoroutinesApi
+    @Test
+    fun onPauseRecording_RecorderFailed_ResumeStartsAgain() = runBlockingTest {
+        manager.startRecording()
+        assertFalse(manager.pauseRecording())
+
+        assertTrue(manager.resumeRecording())
+        verify(recorder, times(2)).startRecording()
+    }
+
+    @ExperimentalCoroutinesApi
     @Test
     fun onCreateFinalSegment_() = runBlockingTest{
         manager.startRecording()
@@ -89,15 +130,45 @@ class SegmentRecordingManagerImplTest {
 
         val file = File("")
         whenever(repo.generateSegmentFile(any())).thenReturn(file)
-        //whenever(repo.persistSegment(any())).thenReturn(Segment(""))
+        whenever(repo.measureAudioDurationsUs(any())).thenReturn(emptyMap())
+        whenever(repo.persistSegmentWithFlags(any(), any())).thenReturn(emptyList())
 
         manager.generateSegment()
 
 
 
         verify(repo).generateSegmentFile(any())
-        verify(repo).persistSegment(any())
-        verify(repo).persistFlagsOfSegment(any())
+        verify(repo).persistSegmentWithFlags(any(), any())
+    }
+
+    @ExperimentalCoroutinesApi
+    @Test
+    fun generateSegment_SingleFileMoved_UsesItsMeasuredDuration() = runBlockingTest {
+        val subSegmentFile = temporaryFolder.newFile("sub.aac")
+        val segmentFile = File(temporaryFolder.root, "segment.aac")
+        val pausableRecorder = mock<PausableRecorder>()
+        whenever(pausableRecorder.startRecording()).thenReturn(true)
+        whenever(pausableRecorder.pauseRecording()).thenReturn(subSegmentFile)
+        whenever(pausableRecorder.stopRecording()).thenReturn(subSegmentFile)
+        whenever(stopwatch.elapsedMillis()).thenReturn(0L, 1000L)
+        whenever(repo.createSegmentFile()).thenReturn(segmentFile)
+        whenever(repo.moveToSegmentFile(any(), any())).thenAnswer {
+            it.getArgument<File>(0).renameTo(it.getArgument(1))
+        }
+        whenever(repo.measureAudioDurationsUs(any())).thenAnswer { invocation ->
+            invocation.getArgument<List<File>>(0).filter { it.isFile }.associateWith { 1_200_000L }
+        }
+        whenever(repo.persistSegmentWithFlags(any(), any())).thenReturn(emptyList())
+        manager = SegmentRecordingManagerImpl(repo, pausableRecorder)
+
+        manager.startRecording()
+        manager.pauseRecording()
+        manager.generateSegment()
+
+        val segment = argumentCaptor<Segment>()
+        verify(repo).persistSegmentWithFlags(segment.capture(), any())
+        assertEquals(segmentFile.absolutePath, segment.firstValue.filePath)
+        assertEquals(1200L, segment.firstValue.durationInMillis)
     }
 
 }
\ No newline at end of file